@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time until the first slice of a file is available, going
+ * through the lazy IOService formats: raw data is opened as a virtual
+ * stack, compressed data has to be decoded in full. Each operation opens
+ * the file afresh, but the operating system's page cache stays warm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+@Fork(1)
+public class FirstSliceBenchmark {
+
+	private static final Map<String, AbstractStackFormat> FORMATS = new HashMap<String, AbstractStackFormat>();
+
+	static {
+		FORMATS.put("dat", new FIBSEMFormat());
+		FORMATS.put("dm3", new DM3Format());
+		FORMATS.put("nrrd", new NrrdFormat());
+		FORMATS.put("nrrd-gzip", new NrrdFormat());
+		FORMATS.put("mha", new MetaImageFormat());
+		FORMATS.put("mhd-zraw", new MetaImageFormat());
+		FORMATS.put("mrc", new MRCFormat());
+		FORMATS.put("df3", new DF3Format());
+		FORMATS.put("nii", new NIfTIFormat());
+	}
+
+	@Param({ "dat", "dm3", "nrrd", "nrrd-gzip", "mha", "mhd-zraw", "mrc", "df3", "nii" })
+	public String format;
+
+	private File directory, input;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("io-benchmark").toFile();
+		input = Formats.createInput(format, directory);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Formats.delete(directory);
+	}
+
+	@Benchmark
+	public Object firstSlice() throws IOException {
+		return FORMATS.get(format).openImage(input).getStack().getPixels(1);
+	}
+}
@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.process.ImageProcessor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import sc.fiji.io.icns.IcnsCodec;
+import sc.fiji.io.icns.IconSuite;
+
+/**
+ * The formats exercised by the benchmarks: for each one, the shape of its
+ * synthetic input and the code paths that open and save it without dialogs.
+ */
+final class Formats {
+
+	private Formats() {}
+
+	static String extension(final String format) {
+		if (format.equals("nrrd-gzip")) return "nrrd";
+		if (format.equals("mhd-zraw")) return "mhd";
+		if (format.equals("lss16")) return "lss";
+		return format;
+	}
+
+	/** Creates an image the format can hold, sized like a typical input. */
+	static ImagePlus createImage(final String format) {
+		if (format.equals("icns"))
+			return SyntheticData.createImage(24, 128, 128, 1, 256);
+		if (format.equals("gif"))
+			return SyntheticData.createImage(8, 256, 256, 16, 256);
+		if (format.equals("lss16"))
+			return SyntheticData.createImage(8, 640, 480, 1, 16);
+		if (format.equals("xpm"))
+			return SyntheticData.createImage(8, 512, 512, 1, 64);
+		if (format.equals("eps"))
+			return SyntheticData.createImage(24, 512, 512, 1, 256);
+		if (format.equals("dat"))
+			return null; // written directly by SyntheticData.writeFIBSEM
+		return SyntheticData.createImage(16, 256, 256, 64, 0);
+	}
+
+	/** Writes the synthetic input of a format into a directory. */
+	static File createInput(final String format, final File directory) throws IOException {
+		final File file = new File(directory, "input." + extension(format));
+		if (format.equals("dat"))
+			SyntheticData.writeFIBSEM(file, 2048, 2048);
+		else if (format.equals("dm3"))
+			SyntheticData.writeDM3(createImage(format), file);
+		else
+			save(format, createImage(format), file);
+		return file;
+	}
+
+	static Object open(final String format, final File file) throws IOException {
+		if (format.equals("gif")) {
+			final GifDecoder decoder = new GifDecoder();
+			if (decoder.read(file.getPath()) != 0)
+				throw new IOException("Could not decode " + file);
+			ImageStack stack = null;
+			for (int i = 0; i < decoder.getFrameCount(); i++) {
+				final ImageProcessor frame = decoder.getFrame(i);
+				if (stack == null)
+					stack = new ImageStack(frame.getWidth(), frame.getHeight());
+				stack.addSlice(null, frame);
+			}
+			return new ImagePlus(file.getName(), stack);
+		}
+		if (format.equals("icns")) {
+			final InputStream in = new FileInputStream(file);
+			try {
+				return new IcnsCodec().decode(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		if (format.equals("lss16")) {
+			final LSS16_Reader reader = new LSS16_Reader();
+			reader.run(file.getPath());
+			return reader;
+		}
+		return BatchConverter.read(file);
+	}
+
+	static void save(final String format, final ImagePlus imp, final File file) throws IOException {
+		if (format.equals("nrrd-gzip")) {
+			final Nrrd_Writer writer = new Nrrd_Writer();
+			writer.setNrrdEncoding("gzip");
+			writer.save(imp, file.getPath());
+		}
+		else if (format.equals("mhd-zraw"))
+			new MetaImage_CWriter().save(imp, AbstractStackFormat.directory(file), file.getName());
+		else if (format.equals("gif")) {
+			final AnimatedGifEncoder2 encoder = new AnimatedGifEncoder2();
+			encoder.start(file.getPath());
+			final ImagePlus frame = new ImagePlus();
+			for (int i = 1; i <= imp.getStackSize(); i++) {
+				frame.setProcessor(null, imp.getStack().getProcessor(i));
+				encoder.addFrame(frame);
+			}
+			encoder.finish();
+		}
+		else if (format.equals("icns")) {
+			final IconSuite icons = new IconSuite();
+			icons.setThumbnailIcon((BufferedImage)imp.getImage());
+			final OutputStream out = new FileOutputStream(file);
+			try {
+				new IcnsCodec().encode(icons, out);
+			}
+			finally {
+				out.close();
+			}
+		}
+		else if (format.equals("lss16") || format.equals("xpm")) {
+			WindowManager.setTempCurrentImage(imp);
+			if (format.equals("lss16"))
+				new LSS16_Writer().run(file.getPath());
+			else
+				new XPM_Writer().run(file.getPath());
+		}
+		else if (format.equals("eps"))
+			Export_EPS.save(imp, file.getPath());
+		else
+			BatchConverter.write(imp, file);
+		if (!file.exists())
+			throw new IOException("Could not save " + file);
+	}
+
+	/** Returns the total size of the files in a directory, for formats with detached data. */
+	static long length(final File directory) {
+		long length = 0;
+		for (final File file : directory.listFiles())
+			length += file.length();
+		return length;
+	}
+
+	static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null)
+			for (final File child : children)
+				delete(child);
+		file.delete();
+	}
+}
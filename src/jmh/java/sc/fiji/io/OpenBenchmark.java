@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how fast each reader opens a whole file. Run with
+ * {@code -prof gc} to get the allocation rate per operation as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpenBenchmark {
+
+	@Param({ "dat", "dm3", "nrrd", "nrrd-gzip", "mha", "mhd-zraw", "mrc", "df3",
+		"nii", "gif", "icns", "lss16" })
+	public String format;
+
+	private File directory, input;
+	private long inputBytes;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("io-benchmark").toFile();
+		input = Formats.createInput(format, directory);
+		inputBytes = Formats.length(directory);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Formats.delete(directory);
+	}
+
+	@Benchmark
+	public Object open(final ByteCounter counter) throws IOException {
+		final Object image = Formats.open(format, input);
+		counter.bytes += inputBytes;
+		return image;
+	}
+}
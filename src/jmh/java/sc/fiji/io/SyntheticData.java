@@ -0,0 +1,204 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Deterministic inputs for the benchmarks. The images are smooth gradients
+ * with some noise, so that the compressing formats see realistic entropy.
+ * FIB-SEM and DM3 files have no writer in this package and are assembled
+ * byte by byte, with just the fields their readers look at.
+ */
+final class SyntheticData {
+
+	private SyntheticData() {}
+
+	/**
+	 * Creates a stack; {@code levels} limits the number of distinct values of
+	 * 8-bit images, for the palette based formats.
+	 */
+	static ImagePlus createImage(final int bitDepth, final int width, final int height,
+			final int depth, final int levels) {
+		final Random random = new Random(width * 31 + height * 17 + depth);
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			final ImageProcessor ip = bitDepth == 8 ? new ByteProcessor(width, height)
+				: bitDepth == 16 ? new ShortProcessor(width, height)
+				: new ColorProcessor(width, height);
+			final double max = bitDepth == 16 ? 4095 : 255;
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++) {
+					double v = 0.5 + 0.25 * Math.sin((x + 2 * z) * 0.05) * Math.cos((y - z) * 0.03)
+						+ 0.15 * (x + y) / (width + height) + 0.05 * random.nextGaussian();
+					v = Math.max(0, Math.min(1, v));
+					int value = (int)(v * max);
+					if (bitDepth == 8 && levels < 256)
+						value = value * levels / 256 * (255 / Math.max(1, levels - 1));
+					if (bitDepth == 24)
+						value = (value << 16) | ((255 - value) << 8) | ((x ^ y) & 0xff);
+					ip.set(x, y, value);
+				}
+			stack.addSlice(null, ip);
+		}
+		return new ImagePlus("synthetic", stack);
+	}
+
+	/** Writes a single-frame, two-channel FIB-SEM file (version 6 header). */
+	static void writeFIBSEM(final File file, final int width, final int height) throws IOException {
+		final int channels = 2;
+		final ByteBuffer header = ByteBuffer.allocate(1024);
+		header.putInt(0, (int)3555587570l);
+		header.putShort(4, (short)6);
+		header.putShort(6, (short)1);
+		header.put(32, (byte)channels);
+		// the reader maps volts = offset + gain * sample from [-10, 10] V to
+		// [0, 65535]; 20 V over the 16-bit range keeps every sample in range
+		for (int c = 0; c < channels; c++) {
+			header.putFloat(36 + 16 * c, 0); // offset
+			header.putFloat(40 + 16 * c, 20f / 65536); // gain
+		}
+		header.putInt(100, width);
+		header.putInt(104, height);
+
+		final ImagePlus imp = createImage(16, width, height, channels, 0);
+		final ByteBuffer data = ByteBuffer.allocate(width * height * channels * 2);
+		final short[][] pixels = new short[channels][];
+		for (int c = 0; c < channels; c++)
+			pixels[c] = (short[])imp.getStack().getPixels(c + 1);
+		// stretch the 12-bit values over the signed detector range
+		for (int i = 0; i < width * height; i++)
+			for (int c = 0; c < channels; c++)
+				data.putShort((short)(pixels[c][i] * 16 - 32768));
+
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(header.array());
+			out.write(data.array());
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes an unsigned 16-bit stack as a little endian DM3 file holding one
+	 * image with its dimensions and spatial calibration.
+	 */
+	static void writeDM3(final ImagePlus imp, final File file) throws IOException {
+		final int width = imp.getWidth(), height = imp.getHeight(), depth = imp.getStackSize();
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(3); // version
+			out.writeInt(0); // file size, not checked
+			out.writeInt(1); // little endian data
+
+			group(out, 1);
+			groupTag(out, "ImageList");
+			group(out, 1);
+			groupTag(out, "");
+			group(out, 1);
+			groupTag(out, "ImageData");
+			group(out, 5);
+			longTag(out, "DataType", 10); // UNSIGNED_INT16_DATA
+			longTag(out, "PixelDepth", 2);
+			groupTag(out, "Dimensions");
+			group(out, 3);
+			longTag(out, "", width);
+			longTag(out, "", height);
+			longTag(out, "", depth);
+			groupTag(out, "Calibrations");
+			group(out, 1);
+			groupTag(out, "Dimension");
+			group(out, 3);
+			for (int d = 0; d < 3; d++) {
+				groupTag(out, "");
+				group(out, 2);
+				dataTag(out, "Scale", 6);
+				out.write(littleEndian(4).putFloat(0.5f).array());
+				dataTag(out, "Units", 20);
+				out.writeInt(4); // USHORT
+				out.writeInt(2);
+				out.write("nm".getBytes("UTF-16LE"));
+			}
+			dataTag(out, "Data", 20);
+			out.writeInt(4); // USHORT
+			out.writeInt(width * height * depth);
+			final ByteBuffer slice = littleEndian(width * height * 2);
+			for (int z = 1; z <= depth; z++) {
+				slice.clear();
+				slice.asShortBuffer().put((short[])imp.getStack().getPixels(z));
+				out.write(slice.array());
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static ByteBuffer littleEndian(final int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void group(final DataOutputStream out, final int tags) throws IOException {
+		out.writeByte(0); // sorted
+		out.writeByte(0); // open
+		out.writeInt(tags);
+	}
+
+	private static void groupTag(final DataOutputStream out, final String label) throws IOException {
+		out.writeByte(20);
+		label(out, label);
+	}
+
+	private static void dataTag(final DataOutputStream out, final String label, final int type) throws IOException {
+		out.writeByte(21);
+		label(out, label);
+		out.writeInt(0x25252525); // %%%%
+		out.writeInt(1);
+		out.writeInt(type);
+	}
+
+	private static void longTag(final DataOutputStream out, final String label, final int value) throws IOException {
+		dataTag(out, label, 3);
+		out.write(littleEndian(4).putInt(value).array());
+	}
+
+	private static void label(final DataOutputStream out, final String label) throws IOException {
+		out.writeShort(label.length());
+		out.writeBytes(label);
+	}
+}
@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+import ij.plugin.FileInfoVirtualStack;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.imglib2.img.Img;
+
+import org.scijava.io.AbstractIOPlugin;
+import org.scijava.io.location.FileLocation;
+import org.scijava.io.location.Location;
+
+/**
+ * Base class of the SciJava I/O plugins that make the readers of this
+ * package available to the ImageJ2 {@code IOService}. Files are opened as
+ * virtual stacks where the format allows it and handed out as lazily loaded
+ * ImgLib2 cell images, one cell per slice (see {@link LazyStackImg}).
+ */
+@SuppressWarnings("rawtypes")
+public abstract class AbstractStackFormat extends AbstractIOPlugin<Img> {
+
+	private final String[] suffixes;
+
+	protected AbstractStackFormat(final String... suffixes) {
+		this.suffixes = suffixes;
+	}
+
+	@Override
+	public Class<Img> getDataType() {
+		return Img.class;
+	}
+
+	@Override
+	public boolean supportsOpen(final Location source) {
+		if (!(source instanceof FileLocation)) return false;
+		final File file = ((FileLocation)source).getFile();
+		final String name = file.getName().toLowerCase();
+		for (final String suffix : suffixes)
+			if (name.endsWith(suffix)) return file.isFile() && accept(file);
+		return false;
+	}
+
+	@Override
+	public Img open(final Location source) throws IOException {
+		if (!(source instanceof FileLocation))
+			throw new IOException("Unsupported location: " + source);
+		final File file = ((FileLocation)source).getFile();
+		final ImagePlus imp = openImage(file);
+		if (imp == null) throw new IOException("Could not open " + file);
+		return LazyStackImg.wrap(imp);
+	}
+
+	/** Checks the contents of a file whose name matches; accepts it by default. */
+	boolean accept(final File file) {
+		return true;
+	}
+
+	/** Opens the file, preferably as a virtual stack. */
+	abstract ImagePlus openImage(File file) throws IOException;
+
+	/** Opens uncompressed raw data as a virtual stack calibrated from the file info. */
+	static ImagePlus openVirtual(final FileInfo fi, final String title) {
+		final ImagePlus imp = new ImagePlus(title, new FileInfoVirtualStack(fi, false));
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = fi.pixelWidth;
+		cal.pixelHeight = fi.pixelHeight;
+		cal.pixelDepth = fi.pixelDepth;
+		if (fi.unit != null) cal.setUnit(fi.unit);
+		if (fi.fileType == FileInfo.GRAY16_SIGNED)
+			cal.setSigned16BitCalibration();
+		imp.setFileInfo(fi);
+		return imp;
+	}
+
+	static String directory(final File file) {
+		return file.getAbsoluteFile().getParent() + File.separator;
+	}
+}
@@ -0,0 +1,55 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+
+import java.io.File;
+
+import org.scijava.io.IOPlugin;
+import org.scijava.plugin.Plugin;
+
+/** Opens Analyze 7.5 header/image pairs lazily, flipping each slice on access. */
+@Plugin(type = IOPlugin.class)
+public class AnalyzeFormat extends AbstractStackFormat {
+
+	public AnalyzeFormat() {
+		super(".hdr", ".img");
+	}
+
+	@Override
+	boolean accept(final File file) {
+		// .img alone is too common; require the matching header
+		final String name = file.getName();
+		return new File(file.getParentFile(), name.substring(0, name.length() - 4) + ".hdr").exists();
+	}
+
+	@Override
+	ImagePlus openImage(final File file) {
+		final Analyze_Reader reader = new Analyze_Reader();
+		final FileInfo fi = reader.load(directory(file), file.getName());
+		final ImagePlus imp = reader.openVirtual(fi);
+		imp.setTitle(fi.fileName);
+		return imp;
+	}
+}
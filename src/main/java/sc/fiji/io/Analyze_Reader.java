@@ -24,9 +24,11 @@ package sc.fiji.io;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.gui.GenericDialog;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
 import ij.io.OpenDialog;
+import ij.measure.Calibration;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
 
@@ -58,16 +60,18 @@ public class Analyze_Reader extends ImagePlus implements PlugIn {
 		if (name==null) return;
 		IJ.showStatus("Opening: " + directory + name);
 		FileInfo fi = load(directory, name);
-		FileOpener fo = new FileOpener(fi);  
-		ImagePlus imp = fo.open(false);
-		if (imp==null) return;
-		ImageStack stack = imp.getStack();
-		for (int i=1; i<=stack.getSize(); i++) {
-			ImageProcessor ip = stack.getProcessor(i);
-			ip.flipVertical();
+		boolean virtual = false;
+		if (arg.equals("") && fi.nImages > 1) {
+			GenericDialog gd = new GenericDialog("Open Analyze");
+			gd.addCheckbox("Use virtual stack", false);
+			gd.showDialog();
+			if (gd.wasCanceled()) return;
+			virtual = gd.getNextBoolean();
 		}
+		ImagePlus imp = virtual ? openVirtual(fi) : open(fi);
+		if (imp==null) return;
 		if (imp.getStackSize()>1)
-			setStack(name, stack);
+			setStack(name, imp.getStack());
 		else
 			setProcessor(name, imp.getProcessor());
 		setCalibration(imp.getCalibration());
@@ -75,6 +79,36 @@ public class Analyze_Reader extends ImagePlus implements PlugIn {
 		if (arg.equals("")) show();
 	}
 
+	/** Reads all slices; the rows are reversed as Analyze stores the origin at the lower left. */
+	ImagePlus open(FileInfo fi) {
+		FileOpener fo = new FileOpener(fi);  
+		ImagePlus imp = fo.open(false);
+		if (imp==null) return null;
+		ImageStack stack = imp.getStack();
+		for (int i=1; i<=stack.getSize(); i++) {
+			ImageProcessor ip = stack.getProcessor(i);
+			ip.flipVertical();
+		}
+		return imp;
+	}
+
+	/**
+	 * Opens a virtual stack using the vox_offset and dimensions parsed by
+	 * {@link #readHeader(String)}; each slice is read and flipped on access.
+	 */
+	ImagePlus openVirtual(FileInfo fi) {
+		ImagePlus imp = new ImagePlus(fi.fileName, new BottomUpVirtualStack(fi));
+		Calibration cal = imp.getCalibration();
+		cal.pixelWidth = fi.pixelWidth;
+		cal.pixelHeight = fi.pixelHeight;
+		cal.pixelDepth = fi.pixelDepth;
+		if (fi.unit != null) cal.setUnit(fi.unit.trim());
+		if (fi.fileType == FileInfo.GRAY16_SIGNED)
+			cal.setSigned16BitCalibration();
+		imp.setFileInfo(fi);
+		return imp;
+	}
+
 	FileInfo load(String directory, String name) {
 		FileInfo fi = new FileInfo(); 
 		if ((name == null) || (name == "")) return null;
@@ -97,13 +131,35 @@ public class Analyze_Reader extends ImagePlus implements PlugIn {
     {
     FileInputStream filein = new FileInputStream (hdrfile);
     DataInputStream input = new DataInputStream (filein);
+    try {
+      return readHeader(input);
+    }
+    finally {
+      input.close();
+      filein.close();
+    }
+    }
+
+  // Header fields not kept in the FileInfo, as parsed by the last call
+  // to readHeader(). NIfTI-1 reuses the Analyze 7.5 layout for these.
+  short[] dims = new short[8];
+  float[] pixdim = new float[8];
+  short datatype;
+  float sclSlope, sclInter;
+  byte xyztUnits;
+  String magic = "";
+
+  /** Parses the 348 byte header from the stream, leaving it right after the header. */
+  FileInfo readHeader( DataInputStream input ) throws IOException 
+    {
     FileInfo fi = new FileInfo();
     byte[] units = new byte[4]; 
+    byte[] magicBytes = new byte[4];
 
     this.littleEndian = false;     
 
     int i;
-    short bitsallocated, datatype;
+    short bitsallocated;
 // In order to get the sliceSpacing, ImagePlus has been altered
 
 //  header_key  
@@ -121,12 +177,13 @@ public class Analyze_Reader extends ImagePlus implements PlugIn {
     short endian = readShort (input);		// dim[0] 
     if ((endian < 0) || (endian > 15)) 
       { littleEndian = true;
-        fi.intelByteOrder = true; }  
-    fi.width = readShort (input);		// dim[1] 
-    fi.height = readShort (input);		// dim[2] 
-    fi.nImages = readShort (input);		// dim[3] 
-    input.readShort ();				// dim[4] 
-    for (i=0; i<3; i++) input.readShort();	// dim[5-7] 
+        fi.intelByteOrder = true;
+        endian = Short.reverseBytes(endian); }  
+    dims[0] = endian;
+    for (i=1; i<8; i++) dims[i] = readShort(input);	// dim[1-7] 
+    fi.width = dims[1];
+    fi.height = dims[2];
+    fi.nImages = dims[3];
     input.read (units, 0, 4); 			// vox_units 
     fi.unit = new String (units, 0, 4); 
     for (i=0; i<8; i++) input.read();		// cal_units[8] 
@@ -134,15 +191,16 @@ public class Analyze_Reader extends ImagePlus implements PlugIn {
     datatype = readShort( input );		// datatype 
     bitsallocated = readShort( input );		// bitpix
     input.readShort ();				// dim_un0
-    input.readFloat ();				// pixdim[0] 
-    fi.pixelWidth = (double) readFloat(input);	// pixdim[1] 
-    fi.pixelHeight = (double) readFloat(input); // pixdim[2] 
-    fi.pixelDepth = (double) readFloat(input); 	// pixdim[3] 
-    for (i=0; i<4; i++) input.readFloat();	// pixdim[4-7]  
+    for (i=0; i<8; i++) pixdim[i] = readFloat(input);	// pixdim[0-7]
+    fi.pixelWidth = (double) pixdim[1];
+    fi.pixelHeight = (double) pixdim[2];
+    fi.pixelDepth = (double) pixdim[3];
     fi.offset = (int) readFloat(input);			// vox_offset
-    input.readFloat ();				// roi_scale 
-    input.readFloat ();				// funused1 
-    input.readFloat ();				// funused2 
+    sclSlope = readFloat(input);		// roi_scale (NIfTI: scl_slope)
+    sclInter = readFloat(input);		// funused1 (NIfTI: scl_inter)
+    input.readShort ();				// funused2 (NIfTI: slice_end,
+    input.readByte ();				//   slice_code,
+    xyztUnits = input.readByte ();		//   xyzt_units)
     input.readFloat ();				// cal_max 
     input.readFloat ();				// cal_min 
     input.readInt ();				// compressed
@@ -170,11 +228,9 @@ public class Analyze_Reader extends ImagePlus implements PlugIn {
     input.readInt ();				// omax  
     input.readInt ();				// omin 
     input.readInt ();				// smax  
-    input.readInt ();				// smin 
+    input.readFully (magicBytes);		// smin (NIfTI: magic)
+    magic = new String (magicBytes, 0, 3, "ISO-8859-1");
 
-    input.close();
-    filein.close();
-    
     switch (datatype) {
       
      case 2:
@@ -193,10 +249,22 @@ public class Analyze_Reader extends ImagePlus implements PlugIn {
       fi.fileType = FileInfo.GRAY32_FLOAT; 		// DT_FLOAT 
       bitsallocated = 32;
       break; 
+     case 64:
+      fi.fileType = FileInfo.GRAY64_FLOAT; 		// DT_DOUBLE 
+      bitsallocated = 64;
+      break; 
      case 128:
       fi.fileType = FileInfo.RGB_PLANAR; 		// DT_RGB
       bitsallocated = 24; 
       break; 
+     case 512:
+      fi.fileType = FileInfo.GRAY16_UNSIGNED; 		// NIfTI DT_UINT16
+      bitsallocated = 16;
+      break;
+     case 768:
+      fi.fileType = FileInfo.GRAY32_UNSIGNED; 		// NIfTI DT_UINT32
+      bitsallocated = 32;
+      break;
      default:
       fi.fileType = 0;					// DT_UNKNOWN
     }
@@ -26,16 +26,19 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
 import ij.io.FileInfo;
-import ij.io.FileSaver;
 import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * This plugin saves Analyze format files.
@@ -80,42 +83,32 @@ public final class Analyze_Writer implements PlugIn {
 			//IJ.error("No filename selected");
 			return;
 		}
-		ImageStack stack = imp.getStack();
-		for (int i=1; i<=stack.getSize(); i++) {
-			ImageProcessor ip = stack.getProcessor(i);
-			ip.flipVertical();
-		}
 		save(imp, directory, name);
-		for (int i=1; i<=stack.getSize(); i++) {
-			ImageProcessor ip = stack.getProcessor(i);
-			ip.flipVertical();
-		}
 		IJ.showStatus(""); 
 	}
 
 	// Save return false if one of the files already exists and the user pressed Cancel.
 	public void save(ImagePlus imp, String directory, String name) {
 		if (name == null) return;
-		if (name.endsWith(".img")) name = name.substring(0, name.length() - 4); 
-		if (name.endsWith(".hdr")) name = name.substring(0, name.length() - 4); 
-		if (!directory.endsWith(File.separator)&& !directory.equals("")) directory += File.separator; 
-		IJ.showStatus("Saving as Analyze: " + directory + name);
-
 		try {
-			String fileName = directory + name + ".hdr";
-			writeHeader( imp, fileName);			
-			fileName = directory + name + ".img";	
-			if (imp.getStackSize() < 2)
-				new FileSaver(imp).saveAsRaw(fileName); 
-			else {
-				if (imp.getStackSize()>1 && imp.getStack().isVirtual())
-					imp.setProperty("AnalyzeFormat", "true");
-				new FileSaver(imp).saveAsRawStack(fileName); 
-			}
+			write(imp, directory, name);
 		}
 		catch (IOException e) {
 			IJ.log("Analyze_Writer: "+ e.getMessage());
 		}
+	}
+
+	/** Saves the image like {@link #save(ImagePlus, String, String)}, but lets failures through. */
+	void write(ImagePlus imp, String directory, String name) throws IOException {
+		if (name.endsWith(".img")) name = name.substring(0, name.length() - 4); 
+		if (name.endsWith(".hdr")) name = name.substring(0, name.length() - 4); 
+		if (!directory.endsWith(File.separator)&& !directory.equals("")) directory += File.separator; 
+		IJ.showStatus("Saving as Analyze: " + directory + name);
+
+		String fileName = directory + name + ".hdr";
+		writeHeader( imp, fileName);			
+		fileName = directory + name + ".img";	
+		writeImage(imp, fileName);
 	} 
 
 	private void writeHeader( ImagePlus imp, String hdrfile ) throws IOException {
@@ -217,6 +210,82 @@ public final class Analyze_Writer implements PlugIn {
 		fileout.close();
 	}
 	
+	/**
+	 * Streams the pixel data in big endian order, writing the rows of every
+	 * slice bottom-up through a reusable row buffer. Analyze images have
+	 * their origin in the lower left corner; the source image is never
+	 * modified and virtual stacks are read one slice at a time.
+	 */
+	private void writeImage(ImagePlus imp, String imgfile) throws IOException {
+		ImageStack stack = imp.getStack();
+		int n = stack.getSize();
+		int shift = imp.getCalibration().isSigned16Bit() ? 32768 : 0;
+		RowWriter rows = new RowWriter(stack.getWidth(), stack.getHeight(),
+			imp.getBitDepth(), shift, ByteOrder.BIG_ENDIAN);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(imgfile), 1 << 20);
+		try {
+			for (int slice = 1; slice <= n; slice++) {
+				rows.writeSlice(stack.getPixels(slice), out);
+				IJ.showProgress(slice, n);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes slices bottom-up through a reusable row buffer, since Analyze
+	 * and NIfTI store the origin at the lower left. 16-bit values are
+	 * shifted by the given offset, RGB is written as 3 bytes per voxel.
+	 */
+	static class RowWriter {
+		private final int width, height, bitDepth, shift;
+		private final ByteBuffer row;
+
+		RowWriter(int width, int height, int bitDepth, int shift, ByteOrder order) {
+			this.width = width;
+			this.height = height;
+			this.bitDepth = bitDepth;
+			this.shift = shift;
+			row = ByteBuffer.allocate(width * (bitDepth == 24 ? 3 : bitDepth / 8));
+			row.order(order);
+		}
+
+		void writeSlice(Object pixels, OutputStream out) throws IOException {
+			for (int y = height - 1; y >= 0; y--) {
+				row.clear();
+				int offset = y * width;
+				switch (bitDepth) {
+					case 8:
+						row.put((byte[])pixels, offset, width);
+						break;
+					case 16: {
+						short[] p = (short[])pixels;
+						for (int x = 0; x < width; x++)
+							row.putShort((short)((p[offset + x] & 0xffff) - shift));
+						break;
+					}
+					case 24: {
+						int[] p = (int[])pixels;
+						for (int x = 0; x < width; x++) {
+							int c = p[offset + x];
+							row.put((byte)(c >> 16)).put((byte)(c >> 8)).put((byte)c);
+						}
+						break;
+					}
+					default: {
+						float[] p = (float[])pixels;
+						for (int x = 0; x < width; x++)
+							row.putFloat(p[offset + x]);
+						break;
+					}
+				}
+				out.write(row.array(), 0, row.position());
+			}
+		}
+	}
+
 	private void writeInt(DataOutputStream input, int value) throws IOException {
 		/*
 		byte b1 = (byte) (value & 0xff);
@@ -0,0 +1,458 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts files between the formats supported by this package without any
+ * dialogs or image windows.
+ * <p>
+ * Readers and writers are looked up by file extension; anything not
+ * registered here is handed to {@link IJ#openImage(String)} and
+ * {@link IJ#saveAs(ImagePlus, String, String)}. Header/data pairs
+ * (Analyze and NIfTI .hdr/.img, MetaImage .mhd, detached NRRD .nhdr) are
+ * converted through their header only. Files are converted
+ * concurrently on a fixed number of threads, and every conversion first
+ * reserves an estimate of its memory use from a shared budget, so that
+ * large files wait for memory to become available instead of exhausting
+ * the heap.
+ * </p>
+ * <p>
+ * From the command line:
+ * </p>
+ * <pre>
+ * java -cp ... sc.fiji.io.BatchConverter [-threads n] [-memory mb] -format ext -output dir input...
+ * </pre>
+ */
+public class BatchConverter {
+
+	/** Opens a file without showing it. */
+	public interface Reader {
+		ImagePlus read(File file) throws IOException;
+	}
+
+	/** Saves an image to a file without any dialog. */
+	public interface Writer {
+		void write(ImagePlus imp, File file) throws IOException;
+	}
+
+	private static final Map<String, Reader> readers = Collections.synchronizedMap(new LinkedHashMap<String, Reader>());
+	private static final Map<String, Writer> writers = Collections.synchronizedMap(new LinkedHashMap<String, Writer>());
+
+	public static void registerReader(final String extension, final Reader reader) {
+		readers.put(extension.toLowerCase(), reader);
+	}
+
+	public static void registerWriter(final String extension, final Writer writer) {
+		writers.put(extension.toLowerCase(), writer);
+	}
+
+	static {
+		final Reader nrrd = new Reader() {
+			public ImagePlus read(final File file) {
+				return new Nrrd_Reader().load(directory(file), file.getName());
+			}
+		};
+		registerReader("nrrd", nrrd);
+		registerReader("nhdr", nrrd);
+		final Reader metaImage = new Reader() {
+			public ImagePlus read(final File file) {
+				final String name = file.getName();
+				return new MetaImage_Reader().load(directory(file), name.substring(0, name.length() - 4),
+					name, name.toLowerCase().endsWith(".mha"));
+			}
+		};
+		registerReader("mhd", metaImage);
+		registerReader("mha", metaImage);
+		final Reader dm3 = new Reader() {
+			public ImagePlus read(final File file) {
+				return new DM3_Reader().load(directory(file), file.getName());
+			}
+		};
+		registerReader("dm3", dm3);
+		registerReader("dm4", dm3);
+		final Reader mrc = new Reader() {
+			public ImagePlus read(final File file) {
+				return Open_MRC_Leginon.open(file.getPath(), false);
+			}
+		};
+		registerReader("mrc", mrc);
+		registerReader("mrcs", mrc);
+		registerReader("rec", mrc);
+		registerReader("st", mrc);
+		registerReader("dat", new Reader() {
+			public ImagePlus read(final File file) throws IOException {
+				if (!FIBSEM_Reader.isFIBSEM(file))
+					throw new IOException("Not a FIB-SEM file: " + file);
+				final FIBSEM_Reader reader = new FIBSEM_Reader();
+				FileInputStream in = new FileInputStream(file);
+				try {
+					final FIBSEM_Reader.FIBSEMData header = reader.parseHeader(in);
+					in.close();
+					in = new FileInputStream(file);
+					final ImagePlus imp = reader.readFIBSEM(header, in, FIBSEM_Reader.openAsFloat);
+					if (imp != null) imp.setTitle(file.getName());
+					return imp;
+				}
+				finally {
+					in.close();
+				}
+			}
+		});
+		registerReader("df3", new Reader() {
+			public ImagePlus read(final File file) throws IOException {
+				return Open_DF3.open(file, false);
+			}
+		});
+		final Reader analyze = new Reader() {
+			public ImagePlus read(final File file) {
+				final Analyze_Reader reader = new Analyze_Reader();
+				final FileInfo fi = reader.load(directory(file), file.getName());
+				final ImagePlus imp = reader.open(fi);
+				if (imp != null) imp.setTitle(fi.fileName);
+				return imp;
+			}
+		};
+		registerReader("hdr", analyze);
+		registerReader("img", analyze);
+		final Reader nifti = new Reader() {
+			public ImagePlus read(final File file) throws IOException {
+				return new NIfTI_Reader().open(directory(file), file.getName());
+			}
+		};
+		registerReader("nii", nifti);
+		registerReader("nii.gz", nifti);
+
+		registerWriter("nrrd", new Writer() {
+			public void write(final ImagePlus imp, final File file) throws IOException {
+				new Nrrd_Writer().write(imp, directory(file), file.getName());
+			}
+		});
+		final Writer metaImageWriter = new Writer() {
+			public void write(final ImagePlus imp, final File file) throws IOException {
+				new MetaImage_Writer().write(imp, directory(file), file.getName());
+			}
+		};
+		registerWriter("mhd", metaImageWriter);
+		registerWriter("mha", metaImageWriter);
+		registerWriter("mrc", new Writer() {
+			public void write(final ImagePlus imp, final File file) throws IOException {
+				Save_MRC.save(imp, file.getPath());
+			}
+		});
+		registerWriter("df3", new Writer() {
+			public void write(final ImagePlus imp, final File file) throws IOException {
+				// 8-bit and 16-bit data are stored as is, anything else is stretched
+				final int bitDepth = imp.getBitDepth();
+				final int typeLength = bitDepth == 8 ? 1 : bitDepth == 16 ? 2 : 4;
+				double[] range = { 0, bitDepth == 8 ? 255 : 65535 };
+				if (typeLength == 4) range = Save_DF3.getRange(imp.getStack());
+				Save_DF3.save(imp.getStack(), file.getPath(), typeLength, range[0], range[1]);
+			}
+		});
+		final Writer analyzeWriter = new Writer() {
+			public void write(final ImagePlus imp, final File file) throws IOException {
+				new Analyze_Writer().write(imp, directory(file), file.getName());
+			}
+		};
+		registerWriter("hdr", analyzeWriter);
+		registerWriter("img", analyzeWriter);
+		final Writer niftiWriter = new Writer() {
+			public void write(final ImagePlus imp, final File file) throws IOException {
+				NIfTI_Writer.save(imp, file.getPath());
+			}
+		};
+		registerWriter("nii", niftiWriter);
+		registerWriter("nii.gz", niftiWriter);
+	}
+
+	private static String directory(final File file) {
+		final File parent = file.getAbsoluteFile().getParentFile();
+		return parent.getPath() + File.separator;
+	}
+
+	/** Returns the lower-case extension; double extensions like nii.gz are kept. */
+	public static String getExtension(final String name) {
+		final String lower = name.toLowerCase();
+		int dot = lower.lastIndexOf('.');
+		if (dot < 0) return "";
+		if (lower.endsWith(".gz")) {
+			final int inner = lower.lastIndexOf('.', dot - 1);
+			if (inner >= 0) dot = inner;
+		}
+		return lower.substring(dot + 1);
+	}
+
+	/** Opens a file with its registered reader, or with ImageJ's own openers. */
+	public static ImagePlus read(final File file) throws IOException {
+		final Reader reader = readers.get(getExtension(file.getName()));
+		final ImagePlus imp = reader != null ? reader.read(file) : IJ.openImage(file.getPath());
+		if (imp == null)
+			throw new IOException("Could not open " + file);
+		return imp;
+	}
+
+	/**
+	 * Saves an image with the writer registered for the extension, or with
+	 * ImageJ's own savers. An existing file is replaced; since ImageJ's savers
+	 * only report errors in dialogs, an empty or missing result is an error.
+	 */
+	public static void write(final ImagePlus imp, final File file) throws IOException {
+		final String extension = getExtension(file.getName());
+		final Writer writer = writers.get(extension);
+		if (file.exists() && !file.delete())
+			throw new IOException("Could not replace " + file);
+		if (writer != null)
+			writer.write(imp, file);
+		else
+			IJ.saveAs(imp, extension, file.getPath());
+		if (!file.isFile() || file.length() == 0)
+			throw new IOException("Could not write " + file);
+	}
+
+	/** Returns the output file for the input, with the format as its extension. */
+	public static File getOutputFile(final File input, final File outputDirectory, final String format) {
+		final String name = input.getName();
+		final String extension = getExtension(name);
+		final String base = extension.length() == 0 ? name : name.substring(0, name.length() - extension.length() - 1);
+		return new File(outputDirectory, base + "." + format);
+	}
+
+	/**
+	 * Returns the file holding the data of a header-only input: the .img of
+	 * an Analyze or NIfTI pair, or the single data file named in a .mhd or
+	 * .nhdr header. Returns null for files carrying their own data, for
+	 * file lists and patterns, and if the data file does not exist.
+	 */
+	static File getDataFile(final File file) {
+		final String name = file.getName();
+		final String extension = getExtension(name);
+		final File directory = file.getAbsoluteFile().getParentFile();
+		String value = null;
+		if (extension.equals("hdr")) {
+			final String base = name.substring(0, name.length() - 4);
+			for (final String suffix : new String[] { ".img", ".img.gz" }) {
+				final File data = new File(directory, base + suffix);
+				if (data.isFile()) return data;
+			}
+			return null;
+		}
+		else if (extension.equals("mhd"))
+			value = readHeaderField(file, '=', "ElementDataFile");
+		else if (extension.equals("nhdr"))
+			value = readHeaderField(file, ':', "data file", "datafile");
+		if (value == null || value.equals("LOCAL") || value.startsWith("LIST") || value.indexOf('%') >= 0)
+			return null;
+		File data = new File(value);
+		if (!data.isAbsolute()) data = new File(directory, value);
+		return data.isFile() ? data : null;
+	}
+
+	/** Returns the value of the first matching "key = value" line of a text header. */
+	private static String readHeaderField(final File file, final char separator, final String... keys) {
+		try {
+			final BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				// headers are short; stop at the end of a NRRD header or after a few hundred lines
+				for (int i = 0; i < 500; i++) {
+					final String line = reader.readLine();
+					if (line == null || (i > 0 && line.length() == 0)) break;
+					final int index = line.indexOf(separator);
+					if (index < 0) continue;
+					final String key = line.substring(0, index).trim();
+					for (final String wanted : keys)
+						if (key.equalsIgnoreCase(wanted))
+							return line.substring(index + 1).trim();
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException e) {
+			// unreadable headers fail later, when they are opened
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the inputs that are the data half of a header/data pair whose
+	 * header is an input too, so that every image is converted exactly once.
+	 */
+	static List<File> removeDataFiles(final List<File> inputs) {
+		final Set<File> dataFiles = new HashSet<File>();
+		for (final File input : inputs) {
+			final File data = getDataFile(input);
+			if (data != null) dataFiles.add(data.getAbsoluteFile());
+		}
+		final List<File> result = new ArrayList<File>();
+		for (final File input : inputs)
+			if (!dataFiles.contains(input.getAbsoluteFile()))
+				result.add(input);
+		return result;
+	}
+
+	private final int threads;
+	private final int budget;
+	private final Semaphore memory;
+
+	/**
+	 * @param threads how many files are converted concurrently
+	 * @param memoryBudget how many bytes the conversions in flight may use
+	 */
+	public BatchConverter(final int threads, final long memoryBudget) {
+		this.threads = Math.max(1, threads);
+		this.budget = (int)Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget >> 20));
+		this.memory = new Semaphore(budget, true);
+	}
+
+	/** Uses one thread per processor and half of the maximum heap. */
+	public BatchConverter() {
+		this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 2);
+	}
+
+	/**
+	 * Estimates the memory needed to convert a file, in megabytes: the
+	 * decoded image plus an encoding buffer of the same size, assuming a 4x
+	 * ratio for compressed data. Headers are sized by their data file.
+	 * Files larger than the budget get the whole budget and are converted
+	 * on their own.
+	 */
+	int estimateMegabytes(final File file) {
+		final File data = getDataFile(file);
+		final File sized = data != null ? data : file;
+		long bytes = sized.length();
+		final String name = sized.getName().toLowerCase();
+		if (name.endsWith(".gz") || name.endsWith(".zraw")) bytes *= 4;
+		return (int)Math.min(budget, Math.max(1, (2 * bytes) >> 20));
+	}
+
+	/**
+	 * Converts all inputs into the output directory, returning an error
+	 * message for every file that failed.
+	 */
+	public List<String> convert(final List<File> inputs, final File outputDirectory, final String format) throws InterruptedException {
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+		final ExecutorService exec = Executors.newFixedThreadPool(threads);
+		for (final File input : inputs) {
+			exec.submit(new Runnable() {
+				public void run() {
+					final int megabytes = estimateMegabytes(input);
+					try {
+						memory.acquire(megabytes);
+					}
+					catch (InterruptedException e) {
+						failures.add(input + ": interrupted");
+						return;
+					}
+					try {
+						final ImagePlus imp = read(input);
+						try {
+							write(imp, getOutputFile(input, outputDirectory, format));
+						}
+						finally {
+							imp.flush();
+						}
+					}
+					catch (Throwable t) {
+						failures.add(input + ": " + t);
+					}
+					finally {
+						memory.release(megabytes);
+					}
+				}
+			});
+		}
+		exec.shutdown();
+		exec.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		return failures;
+	}
+
+	public static void main(final String[] args) throws InterruptedException {
+		if (System.getProperty("java.awt.headless") == null)
+			System.setProperty("java.awt.headless", "true");
+		int threads = Runtime.getRuntime().availableProcessors();
+		long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+		String format = null;
+		File output = null;
+		List<File> inputs = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-threads") && i + 1 < args.length)
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-memory") && i + 1 < args.length)
+				memoryBudget = Long.parseLong(args[++i]) << 20;
+			else if (args[i].equals("-format") && i + 1 < args.length)
+				format = args[++i];
+			else if (args[i].equals("-output") && i + 1 < args.length)
+				output = new File(args[++i]);
+			else {
+				final File input = new File(args[i]);
+				if (input.isDirectory()) {
+					final File[] files = input.listFiles();
+					if (files != null) {
+						Arrays.sort(files);
+						for (final File file : files)
+							if (file.isFile()) inputs.add(file);
+					}
+				}
+				else
+					inputs.add(input);
+			}
+		}
+		inputs = removeDataFiles(inputs);
+		if (format == null || output == null || inputs.isEmpty()) {
+			System.err.println("Usage: java " + BatchConverter.class.getName()
+				+ " [-threads n] [-memory mb] -format ext -output dir input...");
+			System.exit(1);
+		}
+		if (!output.isDirectory() && !output.mkdirs()) {
+			System.err.println("Cannot create " + output);
+			System.exit(1);
+		}
+		final List<String> failures = new BatchConverter(threads, memoryBudget).convert(inputs, output, format);
+		for (final String failure : failures)
+			System.err.println(failure);
+		System.out.println("Converted " + (inputs.size() - failures.size()) + " of " + inputs.size() + " files");
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+}
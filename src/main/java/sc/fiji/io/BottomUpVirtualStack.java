@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.IJ;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * A virtual stack over uncompressed raw slices that are stored with their
+ * origin in the lower left corner, as in Analyze and NIfTI files. Only the
+ * requested slice is read, through {@link ImageReader}, and its rows are
+ * reversed on access.
+ */
+class BottomUpVirtualStack extends VirtualStack {
+
+	private final FileInfo fi;
+	private final long sliceBytes;
+
+	/**
+	 * @param fi describes the raw data: directory, file name, type, size,
+	 *   byte order and offset of the first slice
+	 */
+	BottomUpVirtualStack(final FileInfo fi) {
+		super(fi.width, fi.height);
+		this.fi = fi;
+		this.sliceBytes = (long)fi.width * fi.height * fi.getBytesPerPixel();
+		switch (fi.fileType) {
+			case FileInfo.GRAY8:
+			case FileInfo.COLOR8: setBitDepth(8); break;
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED: setBitDepth(16); break;
+			case FileInfo.RGB:
+			case FileInfo.RGB_PLANAR: setBitDepth(24); break;
+			default: setBitDepth(32); break;
+		}
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		Object pixels = null;
+		try {
+			final FileInputStream in = new FileInputStream(fi.directory + fi.fileName);
+			try {
+				in.getChannel().position(fi.getOffset() + (n - 1) * (sliceBytes + fi.getGap()));
+				pixels = new ImageReader(fi).readPixels(new BufferedInputStream(in, (int)Math.min(sliceBytes, 1 << 20)), 0);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			IJ.log("Could not read slice " + n + " of " + fi.fileName + ": " + e.getMessage());
+		}
+		final int w = fi.width, h = fi.height;
+		final ImageProcessor ip;
+		if (pixels instanceof byte[]) ip = new ByteProcessor(w, h, (byte[])pixels);
+		else if (pixels instanceof short[]) ip = new ShortProcessor(w, h, (short[])pixels, null);
+		else if (pixels instanceof int[]) ip = new ColorProcessor(w, h, (int[])pixels);
+		else if (pixels instanceof float[]) ip = new FloatProcessor(w, h, (float[])pixels);
+		else {
+			switch (getBitDepth()) {
+				case 8: return new ByteProcessor(w, h);
+				case 16: return new ShortProcessor(w, h);
+				case 24: return new ColorProcessor(w, h);
+				default: return new FloatProcessor(w, h);
+			}
+		}
+		ip.flipVertical();
+		return ip;
+	}
+
+	@Override
+	public int getSize() {
+		return fi.nImages;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return null;
+	}
+}
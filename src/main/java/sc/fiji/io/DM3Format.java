@@ -0,0 +1,57 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.scijava.io.IOPlugin;
+import org.scijava.plugin.Plugin;
+
+/** Opens the largest image of a Gatan DigitalMicrograph file lazily. */
+@Plugin(type = IOPlugin.class)
+public class DM3Format extends AbstractStackFormat {
+
+	public DM3Format() {
+		super(".dm3");
+	}
+
+	@Override
+	ImagePlus openImage(final File file) throws IOException {
+		final String directory = directory(file);
+		final DM3_Reader reader = new DM3_Reader();
+		reader.parseDM3(directory, file.getName());
+		reader.chooseImageToLoad();
+		final FileInfo fi = reader.getDM3FileInfo(directory, file.getName());
+		final ImagePlus imp = openVirtual(fi, file.getName());
+		try {
+			imp.setCalibration(reader.getDM3CalibrationInfo(imp.getCalibration()));
+		}
+		catch (Exception e) {
+			// keep the calibration of the raw data
+		}
+		return imp;
+	}
+}
@@ -26,13 +26,18 @@ import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
+import ij.io.ImageReader;
 import ij.io.OpenDialog;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer; // for blreadDouble
 import java.nio.ByteOrder;
@@ -428,6 +433,52 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 		return imp; 		
 	}
 
+	/**
+	 * Sums (or averages) the frames of the chosen image, reading one frame at
+	 * a time so that only the accumulated image is kept in memory.
+	 *
+	 * @param shifts per frame {dx, dy} whole-pixel shifts, or null
+	 */
+	public ImagePlus sumFrames(String directory, String fileName, int[][] shifts, boolean average) throws IOException {
+		if (!directory.endsWith(File.separator)) directory += File.separator;
+		tagHash.clear();
+		storedTags.clear();
+		parseDM3(directory, fileName);
+		chooseImageToLoad();
+		fi = getDM3FileInfo(directory, fileName);
+		if (fi.fileType == FileInfo.RGB || fi.fileType == FileInfo.BGR
+				|| fi.fileType == FileInfo.RGB48 || fi.fileType == FileInfo.ABGR)
+			throw new IOException("Cannot accumulate frames of color images");
+
+		FrameAccumulator accumulator = new FrameAccumulator(fi.width, fi.height, shifts);
+		// ImageReader stores signed 16-bit data shifted by 32768
+		float offset = fi.fileType == FileInfo.GRAY16_SIGNED ? -32768 : 0;
+		ImageReader reader = new ImageReader(fi);
+		InputStream is = new BufferedInputStream(new FileInputStream(directory + fileName), 1 << 20);
+		try {
+			long skip = fi.getOffset();
+			for (int i = 1; i <= fi.nImages; i++) {
+				IJ.showStatus("Accumulating frame " + i + "/" + fi.nImages);
+				Object pixels = reader.readPixels(is, skip);
+				if (pixels == null) throw new EOFException("Frame " + i + " is truncated");
+				accumulator.add(pixels, offset);
+				skip = fi.getGap();
+				IJ.showProgress(i, fi.nImages);
+			}
+		} finally {
+			is.close();
+		}
+
+		ImagePlus imp = new ImagePlus((average ? "AVG_" : "SUM_") + fileName, accumulator.getProcessor(average));
+		try {
+			imp.setCalibration(getDM3CalibrationInfo(imp.getCalibration()));
+		}
+		catch (Exception e) {
+			IJ.showStatus("No Calibration info in "+fileName);
+		}
+		return imp;
+	}
+
 	void parseDM3(String directory, String fileName) throws IOException {
 		// This reads through the DM3 file, extracting useful tags
 		// which allow one to determine the data offset etc.
@@ -28,8 +28,9 @@ package sc.fiji.io;
  * All other images, including 16-bit (short) and 32-bit (float) grayscale images
  * are exported with 8-bit depth, noting that EPS files with 16-bit images are not
  * rendered properly by some PostScript interpreters. 16/32-bit grayscale images
- * are automatically normalized to their max-min range. Lookup tables of grayscale
- * images are ignored.
+ * are automatically normalized to their max-min range, 16-bit ones through a
+ * lookup table. Lookup tables of grayscale images are ignored. Stacks are
+ * saved as a multi-page PostScript document with one page per slice.
  *
  * Author: Wilhelm Burger (wilbur@ieee.org, www.imagingbook.com)
  * License: public domain.
@@ -38,6 +39,9 @@ package sc.fiji.io;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
 import ij.gui.YesNoCancelDialog;
 import ij.io.SaveDialog;
 import ij.measure.Calibration;
@@ -48,18 +52,27 @@ import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
-import java.awt.image.ColorModel;
-import java.io.FileWriter;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.LinkedList;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Export_EPS implements PlugInFilter {
 
 	static final String extension = ".eps";
-	static final int epsLineLength = 38;
+	static final String PREF_KEY = "Export_EPS.";
 
 	private ImagePlus img;
 	private int imgType = 0;
@@ -68,6 +81,7 @@ public class Export_EPS implements PlugInFilter {
 	private int width, height;
 	private double realWidth, realHeight;
 	private boolean saveAsBitmap = false;
+	private int encoding = PostScriptEncoder.FLATE;
 
 	public int setup(String arg0, ImagePlus img) {
 		this.img = img;
@@ -75,23 +89,80 @@ public class Export_EPS implements PlugInFilter {
 	}
 
 	public void run(ImageProcessor ip) {
-		if (img.getStackSize() != 1) {
-			IJ.error("Can only save 2D images!");
-			return;
-		}
+		// EPS holds a single page; stacks become a PostScript document
+		boolean isStack = img.getStackSize() > 1;
 		imgTitle = stripFileExtension(img.getTitle());
-		SaveDialog sd = new SaveDialog("Save image as EPS", imgTitle, extension);
+		SaveDialog sd = isStack ?
+			new SaveDialog("Save stack as PostScript", imgTitle, ".ps") :
+			new SaveDialog("Save image as EPS", imgTitle, extension);
 		String dir = sd.getDirectory();
 		String name = sd.getFileName();
 		if(name == null || name.length() == 0)
 			return;
+		GenericDialog gd = new GenericDialog("EPS Export");
+		gd.addChoice("Encoding", PostScriptEncoder.names,
+			PostScriptEncoder.names[(int)Prefs.get(PREF_KEY + "encoding", PostScriptEncoder.FLATE)]);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		encoding = gd.getNextChoiceIndex();
+		Prefs.set(PREF_KEY + "encoding", encoding);
 		if (ip.isBinary()) {
-			YesNoCancelDialog bd = new YesNoCancelDialog(null, "EPS Export", "Save this image as binary bitmap?");
+			YesNoCancelDialog bd = new YesNoCancelDialog(null, "EPS Export", isStack ?
+				"Save binary slices as binary bitmaps?" : "Save this image as binary bitmap?");
 			if (bd.cancelPressed())
 				return;
 			saveAsBitmap = bd.yesPressed();
 		}
 
+		IJ.showStatus("Writing " + (isStack ? "PostScript " : "EPS ") + dir + name + "...");
+		try {
+			if (isStack)
+				writeDocument(img.getStack(), dir + name);
+			else
+				write(ip, dir + name);
+		} catch(IOException e) {
+			e.printStackTrace();
+			IJ.error("Error writing " + (isStack ? "PostScript" : "EPS") + " file " + dir + name);
+		}
+		IJ.showStatus("");
+	}
+
+	/**
+	 * Saves a 2D image as grayscale or color EPS without showing any dialog,
+	 * Flate-compressed for PostScript Level 3.
+	 */
+	static public void save(ImagePlus img, String path) throws IOException {
+		save(img, path, PostScriptEncoder.FLATE);
+	}
+
+	/**
+	 * Saves a 2D image as EPS with the given encoding, one of
+	 * {@link PostScriptEncoder#HEX}, {@link PostScriptEncoder#ASCII85},
+	 * {@link PostScriptEncoder#RUNLENGTH} or {@link PostScriptEncoder#FLATE}.
+	 */
+	static public void save(ImagePlus img, String path, int encoding) throws IOException {
+		Export_EPS eps = new Export_EPS();
+		eps.setup("", img);
+		eps.encoding = encoding;
+		eps.imgTitle = eps.stripFileExtension(img.getTitle());
+		eps.write(img.getProcessor(), path);
+	}
+
+	/**
+	 * Saves all slices of a stack as the pages of one PostScript document,
+	 * without showing any dialog. 16/32-bit slices are each normalized to
+	 * their own range.
+	 */
+	static public void saveStack(ImagePlus img, String path, int encoding) throws IOException {
+		Export_EPS eps = new Export_EPS();
+		eps.setup("", img);
+		eps.encoding = encoding;
+		eps.imgTitle = eps.stripFileExtension(img.getTitle());
+		eps.writeDocument(img.getStack(), path);
+	}
+
+	void write(ImageProcessor ip, String path) throws IOException {
 		width = ip.getWidth();
 		height = ip.getHeight();
 		imgType = img.getType();
@@ -100,19 +171,67 @@ public class Export_EPS implements PlugInFilter {
 		realHeight = height * imgCalib.pixelHeight;
 		ip.resetMinAndMax();
 
-		IJ.showStatus("Writing EPS " + dir + name + "...");
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(path), 65536);
 		try {
-			FileWriter output = new FileWriter(dir + name);
-			writeHeader(output, name);
+			writeHeader(output, new File(path).getName());
 			writeImage(output, ip);
 			writeTrailer(output);
 			output.flush();
+		} finally {
 			output.close();
-		} catch(IOException e) {
-			e.printStackTrace();
-			IJ.error("Error writing EPS file " + dir + name);
 		}
-		IJ.showStatus("");
+	}
+
+	/**
+	 * Writes a DSC-conforming document with one page per slice, in a single
+	 * pass over the stack; the pages share the procedures of the prolog.
+	 */
+	void writeDocument(ImageStack stack, String path) throws IOException {
+		width = stack.getWidth();
+		height = stack.getHeight();
+		imgType = img.getType();
+		imgCalib = img.getCalibration();
+		realWidth = width * imgCalib.pixelWidth;
+		realHeight = height * imgCalib.pixelHeight;
+		int pages = stack.getSize();
+		int level = PostScriptEncoder.languageLevel(encoding);
+		boolean binarySlicesAsBitmap = saveAsBitmap;
+
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(path), 65536);
+		try {
+			print(output, "%!PS-Adobe-3.0\n");
+			writeComments(output, new File(path).getName());
+			print(output, "%%Pages: " + pages + "\n");
+			print(output, "%%PageOrder: Ascend\n");
+			print(output, "%%EndComments\n");
+			print(output, "%%BeginProlog\n");
+			writeProlog(output);
+			print(output, "%%EndProlog\n");
+			if (level > 1) {
+				print(output, "%%BeginSetup\n");
+				print(output, "<< /PageSize [ " + (int) Math.ceil(imgCalib.xOrigin + realWidth)
+					+ " " + (int) Math.ceil(imgCalib.yOrigin + realHeight) + " ] >> setpagedevice\n");
+				print(output, "%%EndSetup\n");
+			}
+			for (int i = 1; i <= pages; i++) {
+				IJ.showProgress(i - 1, pages);
+				ImageProcessor ip = stack.getProcessor(i);
+				ip.resetMinAndMax();
+				saveAsBitmap = binarySlicesAsBitmap && ip.isBinary();
+				print(output, "%%Page: " + i + " " + i + "\n");
+				print(output, "save\n");
+				writeImage(output, ip);
+				print(output, "restore\n");
+				print(output, "showpage\n");
+			}
+			print(output, "%%Trailer\n");
+			print(output, "%%EOF\n");
+			output.flush();
+		} finally {
+			saveAsBitmap = binarySlicesAsBitmap;
+			output.close();
+			IJ.showProgress(1.0);
+		}
 	}
 
 	boolean isGrayType(int type) {
@@ -122,7 +241,25 @@ public class Export_EPS implements PlugInFilter {
 		}
 	}
 
-	void writeHeader(Writer out, String fileName) throws IOException {
+	void print(OutputStream out, String text) throws IOException {
+		out.write(text.getBytes("ISO-8859-1"));
+	}
+
+	void writeHeader(OutputStream out, String fileName) throws IOException {
+		if (PostScriptEncoder.languageLevel(encoding) > 1)
+			print(out, "%!PS-Adobe-3.0 EPSF-3.0\n");
+		else
+			print(out, "%!PS-Adobe-2.0 EPSF-1.2\n");
+		writeComments(out, fileName);
+		print(out, "%%EndComments\n");
+		print(out, "save\n");
+		print(out, "countdictstack mark newpath\n");
+		print(out, "/showpage {} def\n");
+		print(out, "/setpagedevice {pop} def\n");
+		writeProlog(out);
+	}
+
+	void writeComments(OutputStream out, String fileName) throws IOException {
 		DateFormat dateFormat = new SimpleDateFormat("EEE MMM dd yyyy HH:mm:ss", Locale.US);
         String date = dateFormat.format(new java.util.Date());
 
@@ -135,68 +272,86 @@ public class Export_EPS implements PlugInFilter {
 		int u1 = (int) Math.ceil(x1);
 		int v1 = (int) Math.ceil(y1);
 
-		out.write("%!PS-Adobe-2.0 EPSF-1.2\n");
-		out.write("%%Title: " + fileName + "\n");
-		out.write("%%Creator: " + this.getClass().getSimpleName() + " ImageJ Plugin by W. Burger 2010.12\n");
-		out.write("%%CreationDate: " + date + "\n");
-		out.write("%%BoundingBox: " + u0 + " " + v0 + " " + u1 + " " + v1 + "\n");
-		out.write("%%HiResBoundingBox: " + x0 + " " + y0 + " " + x1 + " " + y1 + "\n");
-		out.write("%%EndComments\n");
-		out.write("save\n");
-		out.write("countdictstack mark newpath\n");
-		out.write("/showpage {} def\n");
-		out.write("/setpagedevice {pop} def\n");
+		int level = PostScriptEncoder.languageLevel(encoding);
+		print(out, "%%Title: " + fileName + "\n");
+		print(out, "%%Creator: " + this.getClass().getSimpleName() + " ImageJ Plugin by W. Burger 2010.12\n");
+		print(out, "%%CreationDate: " + date + "\n");
+		print(out, "%%BoundingBox: " + u0 + " " + v0 + " " + u1 + " " + v1 + "\n");
+		print(out, "%%HiResBoundingBox: " + x0 + " " + y0 + " " + x1 + " " + y1 + "\n");
+		if (level > 1)
+			print(out, "%%LanguageLevel: " + level + "\n");
 	}
 
-	void writeImage(Writer out, ImageProcessor ip) throws IOException {
+	/** Defines the procedures that read the image data following them. */
+	void writeProlog(OutputStream out) throws IOException {
+		if (encoding == PostScriptEncoder.HEX) {
+			int spp = isGrayType(imgType) ? 1 : 3;
+			print(out, "/imgstring " + spp + " string def\n"
+				+ "/hexdata { currentfile imgstring readhexstring pop } bind def\n");
+		} else {
+			// drawimage runs the procedure given to it on the data that
+			// follows; flushing the ASCII85 filter afterwards skips past
+			// its end marker
+			String filter = PostScriptEncoder.compressionFilter(encoding);
+			print(out, "/drawimage {\n"
+				+ "/rawdata currentfile /ASCII85Decode filter def\n"
+				+ "/imgdata rawdata" + (filter == null ? "" : " " + filter + " filter") + " def\n"
+				+ "exec\n"
+				+ "rawdata flushfile\n"
+				+ "} bind def\n");
+		}
+	}
+
+	void writeImage(OutputStream out, ImageProcessor ip) throws IOException {
 		boolean isGray = isGrayType(imgType);
 		int spp = (isGray) ? 1 : 3;			// samples per pixel
 		int bps = (saveAsBitmap) ? 1 : 8;	// bits per sample
-		out.write("/imgstring " + spp + " string def\n"
-			+ width + " " + height + " " + bps + " [ "
+		String image = width + " " + height + " " + bps + " [ "
 			+ (1 / imgCalib.pixelWidth) + " 0 0 "
 			+ (-1 / imgCalib.pixelHeight) + " "
 			+ imgCalib.xOrigin + " " + (realHeight - imgCalib.yOrigin)
-			+ " ] { currentfile imgstring "
-			+ "readhexstring pop } ");
+			+ " ] ";
+		String operator = (spp == 1) ? "image" : "false 3 colorimage";
 
-		switch (spp) {
-		case (1): out.write("image"); break;
-		case (3): out.write("false 3 colorimage"); break;
-		}
+		if (encoding == PostScriptEncoder.HEX)
+			print(out, image + "{ hexdata } " + operator + "\n");
+		else
+			print(out, "{ " + image + "imgdata " + operator + " } drawimage\n");
 
+		PostScriptEncoder data = PostScriptEncoder.create(out, encoding);
 		switch (imgType) {
 		case ImagePlus.GRAY8:
 			if (saveAsBitmap)
-				writeBitmap(out, (ByteProcessor) ip);
+				writeBitmap(data, (ByteProcessor) ip);
 			else
-				writeGray(out, (ByteProcessor) ip);
+				writeGray(data, (ByteProcessor) ip);
 			break;
 		case ImagePlus.GRAY16:
-			writeGray(out, (ShortProcessor) ip);
+			writeGray(data, (ShortProcessor) ip);
 			break;
 		case ImagePlus.GRAY32:
-			writeGray(out, (FloatProcessor) ip);
+			writeGray(data, (FloatProcessor) ip);
 			break;
 		case ImagePlus.COLOR_RGB:
-			writeColor(out, (ColorProcessor) ip);
+			writeColor(data, (ColorProcessor) ip);
 			break;
 		case ImagePlus.COLOR_256:
-			writeColor(out, (ByteProcessor) ip);
+			writeColor(data, (ByteProcessor) ip);
 			break;
 		default:
 			throw new Error("Unknown image type");
 		}
+		data.finish();
 	}
 
-	void writeTrailer(Writer out) throws IOException {
-		out.write("\n%%Trailer\n");
-		out.write("cleartomark countdictstack exch sub { end } repeat\n");
-		out.write("restore\n");
-		out.write("%%EOF\n");
+	void writeTrailer(OutputStream out) throws IOException {
+		print(out, "%%Trailer\n");
+		print(out, "cleartomark countdictstack exch sub { end } repeat\n");
+		print(out, "restore\n");
+		print(out, "%%EOF\n");
 	}
 
-	void writeBitmap(Writer out, ByteProcessor bp) throws IOException {
+	void writeBitmap(OutputStream out, ByteProcessor bp) throws IOException {
 		int w = bp.getWidth();
 		int h = bp.getHeight();
 		int n = (w % 8 == 0) ? w/8 : w/8 + 1;
@@ -206,12 +361,7 @@ public class Export_EPS implements PlugInFilter {
 			// encode and write one image line
 			bp.getRow(0, v, line, w);
 			packOneLine(line, packedLine);
-			for (int i = 0; i < packedLine.length; i++) {
-				if ((i % epsLineLength) == 0)
-					out.write("\n");
-				int p = packedLine[i] & 0xFF;
-				out.write(toHex(p));
-			}
+			out.write(packedLine);
 		}
 	}
 
@@ -231,88 +381,127 @@ public class Export_EPS implements PlugInFilter {
 		}
 	}
 
-	void writeGray(Writer out, ByteProcessor bp) throws IOException {
-		byte[] pixels = (byte[]) bp.getPixels();
-		for (int i = 0; i < pixels.length; i++) {
-			if ((i % epsLineLength) == 0)
-				out.write("\n");
-			int p = pixels[i] & 0xFF;
-			out.write(toHex(p));
-		}
+	void writeGray(OutputStream out, ByteProcessor bp) throws IOException {
+		out.write((byte[]) bp.getPixels());
 	}
 
-	void writeGray(Writer out, ShortProcessor sp) throws IOException {
-		float min = (float) sp.getMin();
-		float max = (float) sp.getMax();
-		float offset = min;
-		float scale =  1;
-		if (max - min > 0.001) {
-			scale = 255 * (max - min);
-		}
-		short[] pixels = (short[]) sp.getPixels();
-		for (int i = 0; i < pixels.length; i++) {
-			if ((i % epsLineLength) == 0)
-				out.write("\n");
-			int p = pixels[i] & 0xFFFF;
-			// normalize to [0,255]
-			int pn = (int) Math.round((p - offset) * scale);
-			out.write(toHex(pn));
-		}
+	void writeGray(OutputStream out, ShortProcessor sp) throws IOException {
+		double min = sp.getMin();
+		double max = sp.getMax();
+		double scale = (max > min) ? 255 / (max - min) : 1;
+		// normalize to [0,255]
+		final byte[] table = new byte[65536];
+		for (int p = 0; p < table.length; p++)
+			table[p] = (byte) Math.max(0, Math.min(255, (int) ((p - min) * scale + 0.5)));
+		final short[] pixels = (short[]) sp.getPixels();
+		writeRows(out, width, new RowConverter() {
+			public void convert(int y, byte[] buffer, int offset) {
+				for (int x = 0, i = y * width; x < width; x++, i++)
+					buffer[offset + x] = table[pixels[i] & 0xFFFF];
+			}
+		});
 	}
 
-	void writeGray(Writer out, FloatProcessor fp) throws IOException {
-		float min = (float) fp.getMin();
+	void writeGray(OutputStream out, FloatProcessor fp) throws IOException {
+		final float min = (float) fp.getMin();
 		float max = (float) fp.getMax();
-		float offset = min;
-		float scale =  1;
-		if (max - min > 0.001) {
-			scale = 255 * (max - min);
-		}
-		float[] pixels = (float[]) fp.getPixels();
-		for (int i = 0; i < pixels.length; i++) {
-			if ((i % epsLineLength) == 0)
-				out.write("\n");
-			int pn = (int) Math.round((pixels[i] - offset) * scale);
-			out.write(toHex(pn));
-		}
+		final float scale = (max - min > 0.001) ? 255 / (max - min) : 1;
+		final float[] pixels = (float[]) fp.getPixels();
+		writeRows(out, width, new RowConverter() {
+			public void convert(int y, byte[] buffer, int offset) {
+				for (int x = 0, i = y * width; x < width; x++, i++) {
+					// normalize to [0,255]; NaN becomes 0
+					float pn = (pixels[i] - min) * scale + 0.5f;
+					buffer[offset + x] = (byte) (pn >= 255 ? 255 : pn > 0 ? (int) pn : 0);
+				}
+			}
+		});
 	}
 
-	void writeColor(Writer out, ColorProcessor cp) throws IOException {
-		final int lineLength = epsLineLength/3;
-		int[] pixels = (int[])cp.getPixels();
-		for (int i = 0; i < pixels.length; i++) {
-			if ((i % lineLength) == 0)
-				out.write("\n");
-			int c = pixels[i];
-			out.write(toHex((c >> 16) & 0xff));
-			out.write(toHex((c >> 8) & 0xff));
-			out.write(toHex(c & 0xff));
-		}
+	void writeColor(OutputStream out, ColorProcessor cp) throws IOException {
+		final int[] pixels = (int[])cp.getPixels();
+		writeRows(out, 3 * width, new RowConverter() {
+			public void convert(int y, byte[] buffer, int offset) {
+				for (int x = 0, i = y * width, j = offset; x < width; x++, i++) {
+					int c = pixels[i];
+					buffer[j++] = (byte) (c >> 16);
+					buffer[j++] = (byte) (c >> 8);
+					buffer[j++] = (byte) c;
+				}
+			}
+		});
 	}
 
-	void writeColor(Writer out, ByteProcessor bp) throws IOException {
-		final int lineLength = epsLineLength/3;
-		ColorModel cm = bp.getColorModel();
-		byte[] pixels = (byte[])bp.getPixels();
-		for (int i = 0; i < pixels.length; i++) {
-			if ((i % lineLength) == 0)
-				out.write("\n");
-			int value = 0xff & pixels[i];
-			out.write(toHex((cm.getRed(value) & 0xff)));
-			out.write(toHex((cm.getGreen(value) & 0xff)));
-			out.write(toHex(cm.getBlue(value) & 0xff));
-		}
+	void writeColor(OutputStream out, ByteProcessor bp) throws IOException {
+		IndexColorModel cm = (IndexColorModel) bp.getColorModel();
+		final byte[] reds = new byte[256], greens = new byte[256], blues = new byte[256];
+		cm.getReds(reds);
+		cm.getGreens(greens);
+		cm.getBlues(blues);
+		final byte[] pixels = (byte[])bp.getPixels();
+		writeRows(out, 3 * width, new RowConverter() {
+			public void convert(int y, byte[] buffer, int offset) {
+				for (int x = 0, i = y * width, j = offset; x < width; x++, i++) {
+					int value = 0xff & pixels[i];
+					buffer[j++] = reds[value];
+					buffer[j++] = greens[value];
+					buffer[j++] = blues[value];
+				}
+			}
+		});
+	}
+
+	/** Converts one image row into samples. */
+	interface RowConverter {
+		void convert(int y, byte[] buffer, int offset);
 	}
 
-	private final char[] hexChar =
-		{'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
-	private final char hexByte[] = new char[2];
+	/**
+	 * Writes all rows of the image. Large images are converted in bands of
+	 * rows on several threads; the bands are written in order, and only a
+	 * few are kept ahead of the output.
+	 */
+	void writeRows(OutputStream out, final int rowBytes, final RowConverter converter) throws IOException {
+		final int bandRows = Math.max(1, (1 << 16) / rowBytes);
+		final int bands = (height + bandRows - 1) / bandRows;
+		int threads = Math.min(Prefs.getThreads(), bands);
+		if (threads <= 1) {
+			byte[] row = new byte[rowBytes];
+			for (int y = 0; y < height; y++) {
+				converter.convert(y, row, 0);
+				out.write(row);
+			}
+			return;
+		}
 
-	char[] toHex(int m) {
-		// m is assumed to be in [0,255]
-		hexByte[0] = hexChar[(m >> 4) & 0xf];
-		hexByte[1] = hexChar[m & 0xf];
-		return hexByte;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+		try {
+			for (int band = 0; band < bands || !pending.isEmpty(); band++) {
+				if (band < bands) {
+					final int y0 = band * bandRows, y1 = Math.min(height, y0 + bandRows);
+					pending.add(executor.submit(new Callable<byte[]>() {
+						public byte[] call() {
+							byte[] buffer = new byte[(y1 - y0) * rowBytes];
+							for (int y = y0; y < y1; y++)
+								converter.convert(y, buffer, (y - y0) * rowBytes);
+							return buffer;
+						}
+					}));
+					if (pending.size() <= 2 * threads) continue;
+				}
+				try {
+					out.write(pending.removeFirst().get());
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while writing EPS");
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+					throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
 	}
 
 	String stripFileExtension(String fileName) {
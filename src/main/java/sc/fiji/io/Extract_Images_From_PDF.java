@@ -30,51 +30,265 @@ package sc.fiji.io;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.FileSaver;
 import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.jpedal.PdfDecoder;
 import org.jpedal.objects.PdfImageData;
 
 /** Extract all images from a PDF file (or from an URL given as argument),
  *  and open them all within ImageJ in their original resolution.
+ *
+ *  Pages are decoded in parallel, each worker with its own decoder, and
+ *  images that occur more than once (logos, repeated panels) are kept only
+ *  the first time. Call the static 'extract' methods to get the images as a
+ *  list or to save them to a directory without opening any windows.
 */
 public class Extract_Images_From_PDF implements PlugIn {
 	public void run(String arg) {
 
 		final String path = PDF_Viewer.getPath(arg);
 		if (null == path) return;
-		PdfDecoder decoder = null;
+
+		String directory = null;
+		if (null == arg || 0 == arg.trim().length()) {
+			GenericDialog gd = new GenericDialog("Extract Images From PDF");
+			gd.addCheckbox("Save to directory instead of opening", false);
+			gd.showDialog();
+			if (gd.wasCanceled()) return;
+			if (gd.getNextBoolean()) {
+				directory = new DirectoryChooser("Save images to").getDirectory();
+				if (null == directory) return;
+			}
+		}
 
 		try {
-			decoder = new PdfDecoder(false);
-			decoder.setExtractionMode(PdfDecoder.RAWIMAGES | PdfDecoder.FINALIMAGES);
-			if (path.startsWith("http://")) decoder.openPdfFileFromURL(path);
-			else decoder.openPdfFile(path);
-
-			final int page_count = decoder.getPageCount();
-
-			for (int page=1; page<=page_count; page++) {
-				IJ.showStatus("Decoding page " + page);
-				decoder.decodePage(page);
-				final PdfImageData images = decoder.getPdfImageData();
-				final int image_count = images.getImageCount();
-
-				for (int i=0; i<image_count; i++) {
-					IJ.showStatus("Opening image " + i + "/" + image_count + " from page " + page + "/" + page_count);
-					String name = images.getImageName(i);
-					BufferedImage image = decoder.getObjectStore().loadStoredImage("R" + name);
-					new ImagePlus(name, image).show();
-				}
+			if (null != directory) {
+				int count = extract(path, directory);
+				IJ.showStatus("Saved " + count + " images to " + directory);
+			} else {
+				for (ImagePlus imp : extract(path))
+					imp.show();
+				IJ.showStatus("Done.");
 			}
-			IJ.showStatus("Done.");
 		} catch (Exception e) {
 			IJ.log("Error: " + e);
 			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the distinct images of the PDF in the order they first appear.
+	 * The pages each image was found on are listed in its "Info" property.
+	 */
+	static public List<ImagePlus> extract(final String path) throws Exception {
+		final List<ImagePlus> images = new ArrayList<ImagePlus>();
+		extract(path, null, images);
+		return images;
+	}
+
+	/**
+	 * Saves the distinct images of the PDF as PNG files named after the page
+	 * they first appear on and their name in the PDF.
+	 *
+	 * @return the number of files written
+	 */
+	static public int extract(final String path, final String directory) throws Exception {
+		return extract(path, directory, null);
+	}
+
+	/** An image found on a page, with the hash of its pixels. */
+	private static class Extracted {
+		final int page;
+		final ImagePlus imp;
+		final String hash;
+
+		Extracted(final int page, final ImagePlus imp, final String hash) {
+			this.page = page;
+			this.imp = imp;
+			this.hash = hash;
+		}
+	}
+
+	private static int extract(final String path, final String directory, final List<ImagePlus> list) throws Exception {
+		final PdfDecoder counter = openDecoder(path);
+		final int page_count;
+		try {
+			page_count = counter.getPageCount();
+		} finally {
+			counter.flushObjectValues(true);
+			counter.closePdfFile();
+		}
+
+		// decoders are not thread-safe: each worker opens its own, and closes
+		// it when the pool shuts down; only worth it for local files
+		final int threads = path.startsWith("http://") ? 1 : Math.min(PDF_Viewer.MAX_DECODERS, Prefs.getThreads());
+		final ThreadLocal<PdfDecoder> decoders = new ThreadLocal<PdfDecoder>();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(new Runnable() {
+					public void run() {
+						try {
+							runnable.run();
+						} finally {
+							final PdfDecoder decoder = decoders.get();
+							if (null != decoder) {
+								decoder.flushObjectValues(true);
+								decoder.closePdfFile();
+							}
+						}
+					}
+				}, "PDF image extractor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// pages are decoded ahead in parallel, but handled in order so that
+		// the first occurrence of an image is the one that is kept
+		final Map<String, ImagePlus> seen = new HashMap<String, ImagePlus>();
+		final LinkedList<Future<List<Extracted>>> pending = new LinkedList<Future<List<Extracted>>>();
+		int count = 0;
+		try {
+			for (int page = 1; page <= page_count || !pending.isEmpty(); page++) {
+				if (page <= page_count) {
+					final int p = page;
+					pending.add(executor.submit(new Callable<List<Extracted>>() {
+						public List<Extracted> call() throws Exception {
+							PdfDecoder decoder = decoders.get();
+							if (null == decoder) {
+								decoder = openDecoder(path);
+								decoders.set(decoder);
+							}
+							return extractPage(decoder, p);
+						}
+					}));
+					if (pending.size() <= 2 * threads) continue;
+				}
+				final List<Extracted> images;
+				try {
+					images = pending.removeFirst().get();
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+				}
+				for (final Extracted image : images) {
+					IJ.showProgress(image.page, page_count);
+					if (seen.containsKey(image.hash)) {
+						final ImagePlus first = seen.get(image.hash);
+						if (null != first)
+							first.setProperty("Info", first.getProperty("Info") + ", " + image.page);
+						continue;
+					}
+					image.imp.setProperty("Info", path + "\nPages: " + image.page);
+					count++;
+					if (null != directory) {
+						String title = image.imp.getTitle();
+						if (!new FileSaver(image.imp).saveAsPng(new File(directory, title + ".png").getPath()))
+							throw new IOException("Could not save " + title + " to " + directory);
+						seen.put(image.hash, null);
+					} else {
+						seen.put(image.hash, image.imp);
+						list.add(image.imp);
+					}
+				}
+			}
 		} finally {
-			decoder.flushObjectValues(true);
-			decoder.closePdfFile();
+			executor.shutdownNow();
+			IJ.showProgress(1.0);
+		}
+		return count;
+	}
+
+	private static PdfDecoder openDecoder(final String path) throws Exception {
+		final PdfDecoder decoder = new PdfDecoder(false);
+		decoder.setExtractionMode(PdfDecoder.RAWIMAGES | PdfDecoder.FINALIMAGES);
+		if (path.startsWith("http://")) decoder.openPdfFileFromURL(path);
+		else decoder.openPdfFile(path);
+		return decoder;
+	}
+
+	private static List<Extracted> extractPage(final PdfDecoder decoder, final int page) throws Exception {
+		decoder.decodePage(page);
+		final PdfImageData images = decoder.getPdfImageData();
+		final int image_count = images.getImageCount();
+		final List<Extracted> result = new ArrayList<Extracted>(image_count);
+		for (int i=0; i<image_count; i++) {
+			final String name = images.getImageName(i);
+			final BufferedImage image = decoder.getObjectStore().loadStoredImage("R" + name);
+			if (null == image) continue;
+			final ImagePlus imp = new ImagePlus("p" + page + "-" + name.replaceAll("[^A-Za-z0-9._-]", "_"), image);
+			image.flush();
+			result.add(new Extracted(page, imp, hash(imp.getProcessor())));
+		}
+		return result;
+	}
+
+	/** Hashes the size, type, palette and pixels of an image. */
+	static String hash(final ImageProcessor ip) throws Exception {
+		final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		final int w = ip.getWidth(), h = ip.getHeight();
+		final byte[] buffer = new byte[4 * Math.max(3, w)];
+		put(buffer, 0, w);
+		put(buffer, 1, h);
+		put(buffer, 2, ip.getBitDepth());
+		digest.update(buffer, 0, 12);
+		final Object pixels = ip.getPixels();
+		// indexed images that differ only in their palette are different images
+		if (pixels instanceof byte[] && ip.getColorModel() instanceof IndexColorModel) {
+			final IndexColorModel cm = (IndexColorModel)ip.getColorModel();
+			final byte[] table = new byte[cm.getMapSize()];
+			cm.getReds(table);
+			digest.update(table);
+			cm.getGreens(table);
+			digest.update(table);
+			cm.getBlues(table);
+			digest.update(table);
 		}
+		for (int y = 0; y < h; y++) {
+			if (pixels instanceof byte[]) {
+				digest.update((byte[])pixels, y * w, w);
+				continue;
+			}
+			for (int x = 0, i = y * w; x < w; x++, i++) {
+				final int value;
+				if (pixels instanceof short[]) value = ((short[])pixels)[i];
+				else if (pixels instanceof float[]) value = Float.floatToIntBits(((float[])pixels)[i]);
+				else value = ((int[])pixels)[i];
+				put(buffer, x, value);
+			}
+			digest.update(buffer, 0, 4 * w);
+		}
+		final StringBuilder builder = new StringBuilder();
+		for (final byte b : digest.digest())
+			builder.append(String.format("%02x", b & 0xff));
+		return builder.toString();
+	}
+
+	private static void put(final byte[] buffer, final int index, final int value) {
+		buffer[4 * index] = (byte)(value >> 24);
+		buffer[4 * index + 1] = (byte)(value >> 16);
+		buffer[4 * index + 2] = (byte)(value >> 8);
+		buffer[4 * index + 3] = (byte)value;
 	}
 }
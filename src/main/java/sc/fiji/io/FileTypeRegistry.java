@@ -0,0 +1,413 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.IJ;
+import ij.Menus;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The file types recognized by {@code HandleExtraFileTypes}, by extension
+ * and magic bytes.
+ * <p>
+ * Every type has a priority given by the order of registration; when
+ * several types match a file, the first one registered wins. Types are
+ * indexed by their suffixes, so only the types registered for the file's
+ * suffixes and those recognized by their header alone are checked.
+ * </p>
+ * <p>
+ * The header read for detection is kept for the current thread while the
+ * chosen plugin runs; readers can pick it up with {@link #getHeader(String)}
+ * instead of reading it again.
+ * </p>
+ */
+public final class FileTypeRegistry {
+
+	/** How many bytes of the file header are read for detection. */
+	public static final int HEADER_SIZE = 1024;
+
+	/** Class name of the entry that opens TrakEM2 projects. */
+	public static final String TRAKEM2 = "ini.trakem2.Project";
+
+	/**
+	 * A file type, opened by running the plugin {@link #getClassName()} with
+	 * the argument {@link #getArgument(String, String)}.
+	 */
+	public static class FileType {
+		private final String className;
+		private final String[] suffixes;
+		private final int magicOffset;
+		private final byte[] magic;
+		private final boolean suffixAndMagic;
+		private int priority;
+
+		/** The plugin to try when this one fails to open the file, if any. */
+		public FileType fallback;
+
+		/**
+		 * @param className the plugin that opens files of this type
+		 * @param suffixes lower-case suffixes such as ".dm3"; a suffix without
+		 *   a leading dot matches the whole file name
+		 * @param magicOffset where the magic bytes start in the header
+		 * @param magic the magic bytes, or null
+		 * @param suffixAndMagic whether suffix and magic must both match;
+		 *   otherwise either one suffices
+		 */
+		public FileType(final String className, final String[] suffixes,
+			final int magicOffset, final byte[] magic, final boolean suffixAndMagic)
+		{
+			this.className = className;
+			this.suffixes = suffixes == null ? new String[0] : suffixes;
+			this.magicOffset = magicOffset;
+			this.magic = magic;
+			this.suffixAndMagic = suffixAndMagic;
+		}
+
+		/** A type recognized by its suffixes only. */
+		public FileType(final String className, final String... suffixes) {
+			this(className, suffixes, 0, null, false);
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		/** Returns the argument to run the plugin with. */
+		public String getArgument(final String name, final String path) {
+			return path;
+		}
+
+		protected boolean hasMagic() {
+			return magic != null;
+		}
+
+		/** Whether the header starts with this type's magic bytes. */
+		protected boolean matchesMagic(final byte[] header) {
+			if (magic == null || magicOffset + magic.length > header.length) return false;
+			for (int i = 0; i < magic.length; i++)
+				if (header[magicOffset + i] != magic[i]) return false;
+			return true;
+		}
+
+		/**
+		 * Additional checks beyond suffix and magic bytes.
+		 *
+		 * @param name the lower-case file name
+		 */
+		protected boolean accept(final String name, final byte[] header, final String path) {
+			return true;
+		}
+
+		private boolean matchesSuffix(final String name) {
+			for (final String suffix : suffixes)
+				if (suffix.startsWith(".") ? name.endsWith(suffix) : name.equals(suffix)) return true;
+			return false;
+		}
+
+		boolean matches(final String name, final byte[] header, final String path) {
+			final boolean matched;
+			if (suffixes.length == 0 && !hasMagic()) matched = true;
+			else if (suffixAndMagic) matched = matchesSuffix(name) && matchesMagic(header);
+			else matched = matchesSuffix(name) || matchesMagic(header);
+			return matched && accept(name, header, path);
+		}
+	}
+
+	private static final List<FileType> types = new ArrayList<FileType>();
+	private static final Map<String, List<FileType>> bySuffix = new HashMap<String, List<FileType>>();
+	// types that may match whatever the suffix
+	private static final List<FileType> unindexed = new ArrayList<FileType>();
+
+	/** Adds a file type with lower priority than all types registered so far. */
+	public static synchronized void register(final FileType type) {
+		type.priority = types.size();
+		types.add(type);
+		for (final String suffix : type.suffixes) {
+			List<FileType> list = bySuffix.get(suffix);
+			if (list == null) bySuffix.put(suffix, list = new ArrayList<FileType>());
+			list.add(type);
+		}
+		if (type.suffixes.length == 0 || (type.hasMagic() && !type.suffixAndMagic))
+			unindexed.add(type);
+	}
+
+	/**
+	 * Returns the registered type with the highest priority that matches,
+	 * or null.
+	 *
+	 * @param name the file name
+	 * @param header the start of the file, zero-padded to
+	 *   {@link #HEADER_SIZE} bytes
+	 */
+	public static synchronized FileType detect(String name, final byte[] header, final String path) {
+		name = name.toLowerCase();
+		final List<FileType> candidates = new ArrayList<FileType>(unindexed);
+		addCandidates(candidates, name);
+		for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1))
+			addCandidates(candidates, name.substring(dot));
+		Collections.sort(candidates, new Comparator<FileType>() {
+			public int compare(final FileType a, final FileType b) {
+				return a.priority - b.priority;
+			}
+		});
+		FileType previous = null;
+		for (final FileType type : candidates) {
+			if (type == previous) continue;
+			previous = type;
+			if (type.matches(name, header, path)) return type;
+		}
+		return null;
+	}
+
+	private static void addCandidates(final List<FileType> candidates, final String suffix) {
+		final List<FileType> list = bySuffix.get(suffix);
+		if (list != null) candidates.addAll(list);
+	}
+
+	private static final ThreadLocal<Object[]> currentHeader = new ThreadLocal<Object[]>();
+
+	/**
+	 * Reads up to {@link #HEADER_SIZE} bytes from the start of a file or
+	 * http URL with a single positioned read, and keeps them for
+	 * {@link #getHeader(String)} until {@link #clearHeader()}.
+	 *
+	 * @return the header, zero-padded to {@link #HEADER_SIZE} bytes
+	 */
+	public static byte[] readHeader(final String path) throws IOException {
+		final byte[] buf = new byte[HEADER_SIZE];
+		int length = 0;
+		if (0 == path.indexOf("http://")) {
+			final InputStream is = new URL(path).openStream();
+			try {
+				for (int n = 0; length < buf.length && (n = is.read(buf, length, buf.length - length)) >= 0;)
+					length += n;
+			}
+			finally {
+				is.close();
+			}
+		}
+		else {
+			final RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				length = Math.max(0, file.getChannel().read(ByteBuffer.wrap(buf), 0));
+			}
+			finally {
+				file.close();
+			}
+		}
+		currentHeader.set(new Object[] { path, Arrays.copyOf(buf, length) });
+		return buf;
+	}
+
+	/**
+	 * Returns the header read by {@link #readHeader(String)} on this thread
+	 * if it was read from the given path, or null. The array holds only the
+	 * bytes actually read.
+	 */
+	public static byte[] getHeader(final String path) {
+		final Object[] header = currentHeader.get();
+		if (header == null) return null;
+		final String read = (String)header[0];
+		return read.equals(path) || new File(read).equals(new File(path)) ? (byte[])header[1] : null;
+	}
+
+	public static void clearHeader() {
+		currentHeader.remove();
+	}
+
+	private static boolean hasCommand(final String command) {
+		// there are no menus when running headless
+		final Hashtable<?, ?> commands = Menus.getCommands();
+		return commands != null && commands.get(command) != null;
+	}
+
+	private static byte[] bytes(final String magic) {
+		try {
+			return magic.getBytes("ISO-8859-1");
+		}
+		catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static {
+		// GJ: Biorad PIC confocal files; these make 12345 if you read them
+		// as the right kind of short
+		register(new FileType("Biorad_Reader", new String[] { ".pic.gz" }, 54, new byte[] { 57, 48 }, false));
+		// GJ: Gatan Digital Micrograph DM3, version number 3
+		register(new FileType("sc.fiji.io.DM3_Reader", new String[] { ".dm3" }, 0, new byte[] { 0, 0, 0, 3 }, true));
+		// IPLab files start with "iiii" or "mmmm"
+		register(new FileType("sc.fiji.io.IPLab_Reader", new String[] { ".ipl" }, 0, bytes("iiii"), false));
+		register(new FileType("sc.fiji.io.IPLab_Reader", null, 0, bytes("mmmm"), false));
+		// Packard InstantImager (.img) with signature KAJ_, before Analyze
+		register(new FileType("InstantImager_Reader", new String[] { ".img" }, 0, new byte[] { 75, 65, 74, 0 }, true));
+		// Analyze (.img/.hdr), using the Nifti_Reader if it is installed
+		register(new FileType("Analyze_Reader", ".img", ".hdr") {
+			public String getClassName() {
+				return hasCommand("NIfTI-Analyze") ? "Nifti_Reader" : super.getClassName();
+			}
+		});
+		// single NIfTI-1/NIfTI-2 files; the external Nifti_Reader handles .nii.z
+		register(new FileType("sc.fiji.io.NIfTI_Reader", ".nii", ".nii.gz"));
+		register(new FileType("Nifti_Reader", ".nii.z"));
+		// Image Cytometry Standard
+		register(new FileType("Ics_Opener", ".ics"));
+		// Princeton Instruments SPE
+		register(new FileType("OpenSPE_", ".spe"));
+		// Zeiss Confocal LSM 510, falling back to the LSM Toolbox
+		final FileType lsm = new FileType("LSM_Reader", ".lsm");
+		lsm.fallback = new FileType("LSM_Toolbox") {
+			public String getArgument(final String name, final String path) {
+				return hasCommand("Show LSMToolbox") ? "file=" + path : null;
+			}
+		};
+		register(lsm);
+		// BM: Bruker files are recognized by their full name
+		register(new FileType("BrukerOpener", "ser", "fid", "2rr", "2ii", "3rrr", "3iii", "2dseq") {
+			public String getArgument(final String name, final String path) {
+				IJ.showStatus("Opening Bruker " + name + " File");
+				return name + "|" + path;
+			}
+		});
+		register(new FileType("AVI_Reader", ".avi"));
+		register(new FileType("QT_Movie_Opener", ".mov", ".pict"));
+		// ZVI files start like Thumbs.db, so only the extension is checked
+		register(new FileType("ZVI_Reader", ".zvi"));
+		// University of North Carolina; the 'magic' numbers are offsets to
+		// data structures and may change in future releases
+		register(new FileType("UNC_Reader", new String[] { ".unc" }, 0, new byte[0], false) {
+			protected boolean matchesMagic(final byte[] buf) {
+				return buf[3] == 117 && buf[7] == -127 && buf[11] == 36 && buf[14] == 32 && buf[15] == -127;
+			}
+		});
+		// Albert Cardona: MRC
+		register(new FileType("sc.fiji.io.Open_MRC_Leginon", ".mrc", ".rec", ".st", ".tmg"));
+		// Deltavision
+		register(new FileType("Deltavision_Opener", ".dv", ".r3d"));
+		// Albert Cardona: EMMENU .dat files, 'new format' only
+		register(new FileType("sc.fiji.io.Open_DAT_EMMENU", new String[] { ".dat" }, 1, new byte[] { 1, 0 }, true));
+		// Albert Cardona: TrakEM2 .xml projects, opened through reflection
+		register(new FileType(TRAKEM2, ".xml", ".xml.gz") {
+			protected boolean accept(final String name, byte[] header, final String path) {
+				if (name.endsWith("z")) {
+					header = new byte[132];
+					try {
+						final InputStream gz = new GZIPInputStream(new BufferedInputStream(new FileInputStream(path)));
+						try {
+							gz.read(header, 0, header.length);
+						}
+						finally {
+							gz.close();
+						}
+					}
+					catch (final IOException e) {
+						e.printStackTrace();
+						return false;
+					}
+				}
+				return -1 != new String(header, 0, Math.min(132, header.length)).toLowerCase().indexOf("trakem2");
+			}
+		});
+		// Stephan Saalfeld: POV-Ray density files
+		register(new FileType("sc.fiji.io.Open_DF3", ".df3"));
+		register(new FileType("sc.fiji.io.FIBSEM_Reader", new String[] { ".dat" }, 0, new byte[] { -45, -19, -11, -14 }, true));
+		// Albert Cardona: pages of a PDF file
+		register(new FileType("sc.fiji.io.PDF_Viewer", ".pdf"));
+		// Greg Jefferis: nrrd, see http://teem.sourceforge.net/nrrd/
+		register(new FileType("sc.fiji.io.Nrrd_Reader", null, 0, bytes("NRRD000"), false));
+		// Greg Jefferis: Torsten Rohlfing's binary files come in pairs such as
+		// T1_SABB4flip01_warp_m0g40c4e1e-1x16r3/image.bin.gz and
+		// T1_SABB4flip01_warp_m0g40c4e1e-1x16r3.study/images
+		register(new FileType("sc.fiji.io.TorstenRaw_GZ_Reader", ".bin", ".bin.gz") {
+			protected boolean accept(final String name, final byte[] header, final String path) {
+				final File parent = new File(path).getParentFile();
+				return parent != null && new File(parent.getPath() + ".study").isDirectory();
+			}
+		});
+		// Johannes Schindelin: icons, SVG and SYSLINUX images
+		register(new FileType("sc.fiji.io.ICO_Reader", ".ico"));
+		register(new FileType("sc.fiji.io.Icns_Reader", ".icns"));
+		register(new FileType("sc.fiji.io.SVG_Reader", ".svg"));
+		register(new FileType("sc.fiji.io.LSS16_Reader", ".lss"));
+		// Johannes Schindelin: scripts
+		register(new FileType("Jython.Refresh_Jython_Scripts", ".py"));
+		register(new FileType("JRuby.Refresh_JRuby_Scripts", ".rb"));
+		register(new FileType("Javascript.Refresh_Javascript_Scripts", ".js"));
+		register(new FileType("Clojure.Refresh_Clojure_Scripts", ".clj"));
+		register(new FileType("BSH.Refresh_BSH_Scripts", ".bs", ".bsh"));
+		// Larry Lindsey: Reconstruct .ser files
+		register(new FileType("edu.utexas.clm.reconstructreader.reconstruct.Reconstruct_Reader", ".ser"));
+		// Timo Rantalainen and Michael Doube: Stratec pQCT files, named
+		// IDDDDDDD.MHH where D is decimal and H is hex
+		register(new FileType("org.doube.bonej.pqct.Read_Stratec_File") {
+			protected boolean accept(final String name, final byte[] header, final String path) {
+				return name.matches("[iI]\\d{7}\\.[mM]\\p{XDigit}{2}");
+			}
+		});
+		register(new FileType("ImageJ_3D_Viewer", ".obj", ".dxf", ".stl"));
+		// Christopher Bruns: Vaa3D V3DRAW, uncompressed or pack-bits
+		register(new FileType("org.janelia.vaa3d.reader.Vaa3d_Reader", null, 0, bytes("raw_image_stack_by_hpeng"), false));
+		register(new FileType("org.janelia.vaa3d.reader.Vaa3d_Reader", null, 0, bytes("v3d_volume_pkbitdf_encod"), false));
+		// Michael Doube: Scanco ISQ files, named ADDDDDDD.ISQ;D
+		register(new FileType("org.bonej.io.ISQReader", null, 0, bytes("CTDATA-HEADER_V1"), false));
+		register(new FileType("org.bonej.io.ISQReader") {
+			protected boolean accept(final String name, final byte[] header, final String path) {
+				return name.matches("[a-z]\\d{7}.isq;\\d+");
+			}
+		});
+		// Larry Lindsey: Archipelago cluster configuration
+		register(new FileType("edu.utexas.clm.archipelago.Fiji_Archipelago", ".arc"));
+		// Roman Grothausmann: ITK metaimages
+		register(new FileType("sc.fiji.io.MetaImage_Reader", ".mhd", ".mha"));
+		// Jerome Parent: Koala .bin files
+		register(new FileType("sc.fiji.io.Koala_Bin_Reader", ".bin"));
+		// Samuel Inverso: raw files
+		register(new FileType("ij.plugin.Raw", ".raw"));
+		// Les Foster: HHMI/Janelia Research Campus' HDF5 format
+		register(new FileType("org.janelia.it.fiji.plugins.h5j.H5j_Reader", ".h5j"));
+		// Olympus .oif, imported from the accompanying directory
+		register(new FileType("ajs.tools.TwoPhoton_Import", ".oif") {
+			public String getArgument(final String name, final String path) {
+				final String dir = path + ".files" + File.separator;
+				ij.io.DirectoryChooser.setDefaultDirectory(dir);
+				return dir;
+			}
+		});
+	}
+}
@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.process.FloatProcessor;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates the frames of a movie into a single float image while they
+ * are streamed from the file, so only the sum and one frame need to be held
+ * in memory. Each frame can be translated by an integer shift before it is
+ * added; pixels shifted out of the image are dropped, and the average of
+ * each pixel only counts the frames that covered it.
+ */
+class FrameAccumulator {
+
+	private final int width, height;
+	private final int[][] shifts;
+	private final float[] sum;
+	/** How many shifted frames covered each pixel; null without shifts. */
+	private final int[] coverage;
+	private int frames = 0;
+
+	/**
+	 * @param shifts per frame {dx, dy} in pixels, or null; frames beyond the
+	 *   end of the list are not shifted.
+	 */
+	FrameAccumulator(final int width, final int height, final int[][] shifts) {
+		this.width = width;
+		this.height = height;
+		this.shifts = shifts;
+		this.sum = new float[width * height];
+		this.coverage = null == shifts ? null : new int[width * height];
+	}
+
+	/**
+	 * Adds the next frame.
+	 *
+	 * @param pixels a byte, short or float array as decoded by the readers
+	 * @param offset added to every value, e.g. -32768 for signed 16-bit data
+	 *   which the readers store shifted into the unsigned range
+	 */
+	void add(final Object pixels, final float offset) {
+		int dx = 0, dy = 0;
+		if (null != shifts && frames < shifts.length) {
+			dx = shifts[frames][0];
+			dy = shifts[frames][1];
+		}
+		final int x0 = Math.max(0, -dx), x1 = Math.min(width, width - dx);
+		final int y0 = Math.max(0, -dy), y1 = Math.min(height, height - dy);
+		for (int y = y0; y < y1; ++y) {
+			final int src = y * width, dst = (y + dy) * width + dx;
+			if (pixels instanceof byte[]) {
+				final byte[] p = (byte[])pixels;
+				for (int x = x0; x < x1; ++x) sum[dst + x] += (p[src + x] & 0xff) + offset;
+			} else if (pixels instanceof short[]) {
+				final short[] p = (short[])pixels;
+				for (int x = x0; x < x1; ++x) sum[dst + x] += (p[src + x] & 0xffff) + offset;
+			} else if (pixels instanceof float[]) {
+				final float[] p = (float[])pixels;
+				for (int x = x0; x < x1; ++x) sum[dst + x] += p[src + x] + offset;
+			} else {
+				throw new IllegalArgumentException("Cannot accumulate frames of type " + pixels.getClass().getSimpleName());
+			}
+			if (null != coverage)
+				for (int x = x0; x < x1; ++x) ++coverage[dst + x];
+		}
+		++frames;
+	}
+
+	int getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * @return the sum of the frames, or their average over the frames that
+	 *   covered each pixel.
+	 */
+	FloatProcessor getProcessor(final boolean average) {
+		if (average && null != coverage) {
+			for (int i = 0; i < sum.length; ++i)
+				if (coverage[i] > 1) sum[i] /= coverage[i];
+		} else if (average && frames > 1) {
+			final float scale = 1f / frames;
+			for (int i = 0; i < sum.length; ++i) sum[i] *= scale;
+		}
+		return new FloatProcessor(width, height, sum);
+	}
+
+	/**
+	 * Reads per frame shifts from a text file: one line per frame holding
+	 * "dx dy", or "frame dx dy" with 1-based frame numbers. Empty lines and
+	 * lines starting with '#' are skipped.
+	 */
+	static int[][] readShifts(final String path) throws IOException {
+		final List<int[]> shifts = new ArrayList<int[]>();
+		final BufferedReader in = new BufferedReader(new FileReader(path));
+		try {
+			for (String line = in.readLine(); null != line; line = in.readLine()) {
+				line = line.trim();
+				if (0 == line.length() || line.startsWith("#")) continue;
+				final String[] parts = line.split("[\\s,;]+");
+				try {
+					if (parts.length >= 3) {
+						final int frame = Integer.parseInt(parts[0]) - 1;
+						if (frame < 0) throw new IOException("Invalid shift line: " + line);
+						while (shifts.size() <= frame) shifts.add(new int[2]);
+						shifts.set(frame, new int[] { toInt(parts[1]), toInt(parts[2]) });
+					} else if (2 == parts.length) {
+						shifts.add(new int[] { toInt(parts[0]), toInt(parts[1]) });
+					} else {
+						throw new IOException("Invalid shift line: " + line);
+					}
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid shift line: " + line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return shifts.toArray(new int[shifts.size()][]);
+	}
+
+	/** Shifts are applied in whole pixels, so fractional values are rounded. */
+	private static int toInt(final String value) {
+		return (int)Math.round(Double.parseDouble(value));
+	}
+}
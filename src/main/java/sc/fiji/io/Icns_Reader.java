@@ -55,7 +55,11 @@ public class Icns_Reader extends ImagePlus implements PlugIn {
 			IcnsCodec codec = new IcnsCodec();
 			IconSuite icons = codec.decode(in);
 			alreadyShown = 0;
-			show(file.getName(), icons.getThumbnailIcon());
+			for (int size = 1024; size >= 32; size /= 2)
+				show(file.getName(), icons.getPNGIcon(size));
+			// files carrying both usually hold the same 128x128 image
+			if (icons.getPNGIcon(128) == null)
+				show(file.getName(), icons.getThumbnailIcon());
 			show(file.getName(), icons.getHugeIcon());
 			show(file.getName(), icons.getLargeIcon());
 			show(file.getName(), icons.getSmallIcon());
@@ -47,19 +47,27 @@ public class Icns_Writer implements PlugIn {
 		// TODO: support saving more than one image
 
 		int w = image.getWidth(), h = image.getHeight();
+		BufferedImage bufferedImage = (BufferedImage)image.getImage();
 		IconSuite icons = new IconSuite();
 		if (w == 16 && h == 16)
-			icons.setSmallIcon((BufferedImage)image.getImage());
+			icons.setSmallIcon(bufferedImage);
 		else if (w == 32 && h == 32)
-			icons.setLargeIcon((BufferedImage)image.getImage());
+			icons.setLargeIcon(bufferedImage);
 		else if (w == 48 && h == 48)
-			icons.setHugeIcon((BufferedImage)image.getImage());
-		else if (w == 128 && h == 128)
-			icons.setThumbnailIcon((BufferedImage)image.getImage());
+			icons.setHugeIcon(bufferedImage);
+		else if (w == 128 && h == 128) {
+			// it32 for older readers, ic07 for current ones
+			icons.setThumbnailIcon(bufferedImage);
+			icons.setPNGIcon(w, bufferedImage);
+		}
+		else if (w == h && (w == 64 || w == 256 || w == 512 ||
+				w == 1024))
+			icons.setPNGIcon(w, bufferedImage);
 		else {
 			IJ.error("Invalid dimensions: " + w + "x" + h +
 					"\nMust be one of 16x16, 32x32, " +
-					"48x48 or 128x128");
+					"48x48, 64x64, 128x128, 256x256, " +
+					"512x512 or 1024x1024");
 			return;
 		}
 
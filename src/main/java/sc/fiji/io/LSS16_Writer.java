@@ -169,7 +169,7 @@ public class LSS16_Writer implements PlugIn {
 		for (int j = 0; j < h; j++) {
 			int last = 0;
 			for (int i = 0; i < w; i++) {
-				int value = colors[pixels[k]];
+				int value = colors[pixels[k] & 0xff];
 				writeNybble(out, value);
 				if (value != last) {
 					last = value;
@@ -177,7 +177,7 @@ public class LSS16_Writer implements PlugIn {
 					continue;
 				}
 				int count = 1;
-				while (i < w && colors[pixels[k++]]
+				while (i < w && colors[pixels[k++] & 0xff]
 						== value && count < 255 + 16) {
 					i++;
 					count++;
@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Exposes an {@link ImagePlus} as an ImgLib2 cell image with one cell per
+ * slice. A slice is only taken from the stack when a cell is first accessed,
+ * so virtual stacks are read on demand; loaded cells are softly referenced
+ * and can be reclaimed when memory runs low.
+ */
+final class LazyStackImg {
+
+	private LazyStackImg() {}
+
+	/**
+	 * Wraps the image. The axes are X, Y and then channels, slices and frames
+	 * in ImageJ's stack order, leaving out those of size one. Signed 16-bit
+	 * images are converted back from ImageJ's offset representation.
+	 */
+	static Img<?> wrap(final ImagePlus imp) {
+		final int[] sizes = { imp.getNChannels(), imp.getNSlices(), imp.getNFrames() };
+		long[] dimensions = { imp.getWidth(), imp.getHeight() };
+		for (int size : sizes)
+			if (size > 1) {
+				dimensions = Arrays.copyOf(dimensions, dimensions.length + 1);
+				dimensions[dimensions.length - 1] = size;
+			}
+		final int[] cellDimensions = new int[dimensions.length];
+		Arrays.fill(cellDimensions, 1);
+		cellDimensions[0] = imp.getWidth();
+		cellDimensions[1] = imp.getHeight();
+		final CellGrid grid = new CellGrid(dimensions, cellDimensions);
+		final ImageStack stack = imp.getStack();
+
+		switch (imp.getType()) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+			return new LazyCellImg<UnsignedByteType, ByteArray>(grid, new UnsignedByteType(),
+				new Slices<ByteArray>(grid, stack) {
+					ByteArray wrap(final Object pixels) {
+						return new ByteArray((byte[])pixels);
+					}
+				});
+		case ImagePlus.GRAY16:
+			if (imp.getCalibration().isSigned16Bit())
+				return new LazyCellImg<ShortType, ShortArray>(grid, new ShortType(),
+					new Slices<ShortArray>(grid, stack) {
+						ShortArray wrap(final Object pixels) {
+							final short[] data = ((short[])pixels).clone();
+							for (int i = 0; i < data.length; i++)
+								data[i] = (short)((data[i] & 0xffff) - 32768);
+							return new ShortArray(data);
+						}
+					});
+			return new LazyCellImg<UnsignedShortType, ShortArray>(grid, new UnsignedShortType(),
+				new Slices<ShortArray>(grid, stack) {
+					ShortArray wrap(final Object pixels) {
+						return new ShortArray((short[])pixels);
+					}
+				});
+		case ImagePlus.GRAY32:
+			return new LazyCellImg<FloatType, FloatArray>(grid, new FloatType(),
+				new Slices<FloatArray>(grid, stack) {
+					FloatArray wrap(final Object pixels) {
+						return new FloatArray((float[])pixels);
+					}
+				});
+		case ImagePlus.COLOR_RGB:
+			return new LazyCellImg<ARGBType, IntArray>(grid, new ARGBType(),
+				new Slices<IntArray>(grid, stack) {
+					IntArray wrap(final Object pixels) {
+						return new IntArray((int[])pixels);
+					}
+				});
+		default:
+			throw new IllegalArgumentException("Unsupported image type: " + imp.getType());
+		}
+	}
+
+	/** Loads the cell with a given flat index from the matching stack slice. */
+	private static abstract class Slices<A> implements LazyCellImg.Get<Cell<A>> {
+
+		private final CellGrid grid;
+		private final ImageStack stack;
+		private final Map<Long, SoftReference<Cell<A>>> cache =
+			new ConcurrentHashMap<Long, SoftReference<Cell<A>>>();
+
+		Slices(final CellGrid grid, final ImageStack stack) {
+			this.grid = grid;
+			this.stack = stack;
+		}
+
+		abstract A wrap(Object pixels);
+
+		public Cell<A> get(final long index) {
+			final SoftReference<Cell<A>> reference = cache.get(index);
+			Cell<A> cell = reference == null ? null : reference.get();
+			if (cell != null) return cell;
+			final Object pixels;
+			// virtual stacks are not safe to read concurrently
+			synchronized (stack) {
+				pixels = stack.getPixels((int)index + 1);
+			}
+			final long[] min = new long[grid.numDimensions()];
+			final int[] dimensions = new int[grid.numDimensions()];
+			grid.getCellDimensions(index, min, dimensions);
+			cell = new Cell<A>(dimensions, min, wrap(pixels));
+			cache.put(index, new SoftReference<Cell<A>>(cell));
+			return cell;
+		}
+	}
+}
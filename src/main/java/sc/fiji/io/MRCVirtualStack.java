@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.IJ;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A virtual stack over the sections of an MRC file. Each section is mapped
+ * from the file when accessed and its rows are flipped into ImageJ's top-down
+ * order while decoding, so opening even huge tomograms is instant. Complex
+ * sections are served as two consecutive slices (real, imaginary).
+ */
+class MRCVirtualStack extends VirtualStack {
+
+	private final String path;
+	private final Open_MRC_Leginon.Header header;
+	private final String[] labels;
+
+	MRCVirtualStack(final String path, final Open_MRC_Leginon.Header header) {
+		super(header.nx, header.ny);
+		this.path = path;
+		this.header = header;
+		this.labels = header.getSectionLabels();
+		setBitDepth(header.bitDepth());
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		final int w = header.nx, h = header.ny;
+		final int section = (n - 1) / header.channels();
+		Object pixels = null;
+		try {
+			final RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				final long size = header.bytesPerSection();
+				final MappedByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+						header.dataOffset() + section * size, size);
+				buf.order(header.order());
+				pixels = Open_MRC_Leginon.readSection(buf, header.mode, w, h)[(n - 1) % header.channels()];
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			IJ.log("MRC: could not read section " + n + " of " + path + ": " + e.getMessage());
+		}
+		switch (getBitDepth()) {
+			case 8: return null == pixels ? new ByteProcessor(w, h) : new ByteProcessor(w, h, (byte[])pixels);
+			case 16: return null == pixels ? new ShortProcessor(w, h) : new ShortProcessor(w, h, (short[])pixels, null);
+			default: return null == pixels ? new FloatProcessor(w, h) : new FloatProcessor(w, h, (float[])pixels);
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return header.nz * header.channels();
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return null == labels ? null : labels[(n - 1) / header.channels()];
+	}
+}
@@ -0,0 +1,63 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.scijava.io.IOPlugin;
+import org.scijava.plugin.Plugin;
+
+/**
+ * Opens MetaImage files. A single uncompressed, single-component data file is
+ * read lazily; file lists, compressed and multi-component data are read whole.
+ */
+@Plugin(type = IOPlugin.class)
+public class MetaImageFormat extends AbstractStackFormat {
+
+	public MetaImageFormat() {
+		super(".mhd", ".mha");
+	}
+
+	@Override
+	ImagePlus openImage(final File file) throws IOException {
+		final String name = file.getName();
+		final String baseName = name.substring(0, name.length() - 4);
+		final boolean local = name.toLowerCase().endsWith(".mha");
+		final MetaImage_Reader reader = new MetaImage_Reader();
+		final FileInfo fi = reader.readHeader(directory(file), baseName, name, local);
+		if (reader.numChannels > 1 || fi.fileName.equals("LIST") || fi.fileName.indexOf('%') >= 0
+				|| fi.compression == FileInfo.COMPRESSION_UNKNOWN)
+			return BatchConverter.read(file);
+		if (fi.longOffset < 0)
+			fi.longOffset = reader.getOffset(fi);
+		final ImagePlus imp = openVirtual(fi, baseName);
+		if (reader.numFrames > 1)
+			imp.setDimensions(1, reader.numSlices, reader.numFrames);
+		if (reader.frameInterval > 0)
+			imp.getCalibration().frameInterval = reader.frameInterval;
+		return imp;
+	}
+}
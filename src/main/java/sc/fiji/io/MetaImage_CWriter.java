@@ -61,6 +61,7 @@ FITNESS FOR ANY PARTICULAR PURPOSE.
 //02: implemented saving data locally, i.e. MHAs; ByteOrder fitting ITK
 //02b: added dummy header entry "CompressedDataSize = 9999999999999" with which ITK only reports a warning
 //02c: MHD/MHA-bug resoved
+//03: hyperstacks: frames written as NDims = 4, channels as interleaved components
 
 //todo
 // -add CompressedDataSize to header (without ITK aborts on decompression)
@@ -241,7 +242,7 @@ public final class MetaImage_CWriter implements PlugIn {
     }
 
 
-    private void save(ImagePlus imp, String dir, String baseName) {
+    void save(ImagePlus imp, String dir, String baseName) {
 
 	String headerName;
 	String dataName;
@@ -269,7 +270,17 @@ public final class MetaImage_CWriter implements PlugIn {
             if (writeHeader(imp, dir + headerName, dataName)) {
                 // Save data file.
                 IJ.showStatus("Writing " + dataName + "...");
-                if (imp.getStackSize() > 1)
+                if (MetaImage_Writer.isMultiComponent(imp)) {
+                    OutputStream out = new DeflaterOutputStream(
+                        new FileOutputStream(dir + dataName, dataName.endsWith(".mha")));
+                    try {
+                        MetaImage_Writer.writeInterleaved(imp, out, Prefs.intelByteOrder);
+                    }
+                    finally {
+                        out.close();
+                    }
+                }
+                else if (imp.getStackSize() > 1)
                     new DeflateExtendedFileSaver(imp).saveAsRawStack(dir + dataName);
                 else
                     new DeflateExtendedFileSaver(imp).saveAsRaw(dir + dataName);
@@ -286,6 +297,8 @@ public final class MetaImage_CWriter implements PlugIn {
     {
         FileInfo fi = imp.getFileInfo();
         String numChannels = "1", type = "MET_NONE";
+        if (MetaImage_Writer.isMultiComponent(imp))
+            numChannels = String.valueOf(imp.getNChannels());
 
         switch (fi.fileType) {
         case FileInfo.COLOR8:          type = "MET_UCHAR";  break;
@@ -309,16 +322,18 @@ public final class MetaImage_CWriter implements PlugIn {
         FileOutputStream file = new FileOutputStream(path);
         PrintStream stream = new PrintStream(file);
         
-        int ndims = (imp.getStackSize() > 1) ? 3 : 2;
+        // channels are written as components, frames as the fourth dimension;
+        // RGB components live inside each slice and do not divide the stack
+        int nFrames = imp.getNFrames();
+        int nComponentSlices = MetaImage_Writer.isMultiComponent(imp) ? imp.getNChannels() : 1;
+        int nSlices = imp.getStackSize() / (nComponentSlices * nFrames);
+        int ndims = nFrames > 1 ? 4 : (nSlices > 1 ? 3 : 2);
 
         stream.println("ObjectType = Image");
-        if (ndims == 3)
-            stream.println("NDims = 3");
-        else
-            stream.println("NDims = 2");
+        stream.println("NDims = " + ndims);
         stream.println("BinaryData = True");
 
-        if (fi.intelByteOrder)
+        if (Prefs.intelByteOrder) // the data is written in this order
             stream.println("BinaryDataByteOrderMSB = False");
 	else
             stream.println("BinaryDataByteOrderMSB = True");
@@ -326,15 +341,21 @@ public final class MetaImage_CWriter implements PlugIn {
         stream.println("CompressedData = True");
         stream.println("CompressedDataSize = 9999999999999"); 
 
-        if (ndims == 3) {
-            stream.println("DimSize = " + fi.width + " " + fi.height + " " + fi.nImages);
+        if (ndims == 4) {
+            double frameInterval = imp.getCalibration().frameInterval;
+            stream.println("DimSize = " + fi.width + " " + fi.height + " " + nSlices + " " + nFrames);
+            stream.println("ElementSize = " + fi.pixelWidth + " " + fi.pixelHeight + " " + fi.pixelDepth
+                + " " + (frameInterval > 0 ? frameInterval : 1.0));
+        }
+        else if (ndims == 3) {
+            stream.println("DimSize = " + fi.width + " " + fi.height + " " + nSlices);
             stream.println("ElementSize = " + fi.pixelWidth + " " + fi.pixelHeight + " " + fi.pixelDepth);
         }
         else {
             stream.println("DimSize = " + fi.width + " " + fi.height);
             stream.println("ElementSize = " + fi.pixelWidth + " " + fi.pixelHeight);
         }
-        if (numChannels != "1")
+        if (!numChannels.equals("1"))
             stream.println("ElementNumberOfChannels = " + numChannels);
         stream.println("ElementType = " + type);
 
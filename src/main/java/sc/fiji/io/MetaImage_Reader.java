@@ -63,6 +63,8 @@ FITNESS FOR ANY PARTICULAR PURPOSE.
 //    1. only feed header to Propoerties.load() because load() interprets unicode escape sequences which are likely to occure in data part
 //    2. only feed data to InflaterInputStream, therefore skip header on the exact byte count
 //03: support for not compressed mha, clean up, optimization, ByteOrder fitting ITK, 64bit float support
+//04: NDims > 3 mapped onto ImageJ Z/T, ElementNumberOfChannels mapped onto C
+//    (components are de-interleaved plane by plane while streaming the data)
 
 import java.io.*;
 import java.util.*;
@@ -73,8 +75,11 @@ import ij.io.*;
 
 import java.util.zip.InflaterInputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.awt.image.*;
 import ij.gui.*;
+import ij.measure.Calibration;
 
 class ExtendedFileOpener extends FileOpener {
     // private class which determines if the file is gzipped or not
@@ -125,6 +130,12 @@ public class MetaImage_Reader implements PlugIn {
 
     public boolean littleEndian = false;
 
+    // hyperstack layout of the last header read
+    int numChannels = 1;
+    int numSlices = 1;
+    int numFrames = 1;
+    double frameInterval = 0;
+
     public void run(String arg) {
         OpenDialog od = new OpenDialog("Open MetaImage...", arg);
         String dir = od.getDirectory();
@@ -161,7 +172,13 @@ public class MetaImage_Reader implements PlugIn {
         ImagePlus impOut = null;
         try {
             FileInfo fi = readHeader(dir, baseName, headerName, local);
-            if (fi.fileName.equals("LIST")) {
+            boolean listed = fi.fileName.equals("LIST") || fi.fileName.indexOf('%') >= 0;
+            if (listed && numChannels > 1)
+                throw new IOException("Multi-component data is not supported for file lists.");
+            if (numChannels > 1) {
+                impOut = openChannels(fi, baseName);
+            }
+            else if (fi.fileName.equals("LIST")) {
                 // Loads a sequence of files.
                 BufferedReader in = new BufferedReader(new FileReader(dir + headerName));
                 ImageStack stackOut = new ImageStack(fi.width, fi.height);
@@ -258,6 +275,13 @@ public class MetaImage_Reader implements PlugIn {
                 FileOpener opener = new FileOpener(fi);
                 impOut = opener.open(false);
             }
+            if (impOut != null && numFrames > 1 && numChannels == 1
+                && impOut.getStackSize() == numSlices * numFrames) {
+                impOut.setDimensions(1, numSlices, numFrames);
+                impOut.setOpenAsHyperStack(true);
+            }
+            if (impOut != null && frameInterval > 0)
+                impOut.getCalibration().frameInterval = frameInterval;
         }
         catch (IOException e) {
             IJ.error("MetaImage Reader: " + e.getMessage());
@@ -269,14 +293,15 @@ public class MetaImage_Reader implements PlugIn {
     }
 
 
-    private FileInfo readHeader(String  dir,
-                                String  baseName,
-                                String  headerName,
-                                boolean local) throws IOException, NumberFormatException
+    FileInfo readHeader(String  dir,
+                        String  baseName,
+                        String  headerName,
+                        boolean local) throws IOException, NumberFormatException
     {
         FileInfo fi = new FileInfo();
         fi.directory  = dir;
         fi.fileFormat = FileInfo.RAW;
+        frameInterval = 0;
 
         Properties p = new Properties();
         ////for mha it is necessary to only pass the header to properties
@@ -316,11 +341,12 @@ public class MetaImage_Reader implements PlugIn {
             if (ndims > 1) {
                 fi.width = Integer.parseInt(parts[0]);
                 fi.height = Integer.parseInt(parts[1]);
-                fi.nImages = 1;
-                if (ndims > 2) {
-                    for (int i = ndims - 1; i >= 2; --i)
-                        fi.nImages *= Integer.parseInt(parts[i]);
-                }
+                numSlices = ndims > 2 ? Integer.parseInt(parts[2]) : 1;
+                numFrames = 1;
+                // everything above the third dimension is treated as time
+                for (int i = ndims - 1; i >= 3; --i)
+                    numFrames *= Integer.parseInt(parts[i]);
+                fi.nImages = numSlices * numFrames;
             }
             else {
                 throw new IOException("Unsupported number of dimensions.");
@@ -334,9 +360,19 @@ public class MetaImage_Reader implements PlugIn {
                 fi.pixelHeight = Double.parseDouble(parts[1]);
             if (parts.length > 2)
                 fi.pixelDepth  = Double.parseDouble(parts[2]);
+            if (parts.length > 3 && ndims > 3)
+                frameInterval  = Double.parseDouble(parts[3]);
+        }
+        numChannels = Integer.parseInt(strElementNumberOfChannels);
+        if (numChannels == 3 && strElementType.startsWith("MET_UCHAR")) {
+            // three byte components are still opened as a plain RGB image
+            fi.fileType = FileInfo.RGB;
+            numChannels = 1;
         }
-        int numChannels = Integer.parseInt(strElementNumberOfChannels);
-        if (numChannels == 1) {
+        else if (numChannels >= 1) {
+            // further components are de-interleaved into hyperstack channels
+            if (strElementType.endsWith("_ARRAY"))
+                strElementType = strElementType.substring(0, strElementType.length() - 6);
             if (strElementType.equals("MET_UCHAR"))       { fi.fileType = FileInfo.GRAY8;           }
             else if (strElementType.equals("MET_SHORT"))  { fi.fileType = FileInfo.GRAY16_SIGNED;   }
             else if (strElementType.equals("MET_USHORT")) { fi.fileType = FileInfo.GRAY16_UNSIGNED; }
@@ -351,17 +387,6 @@ public class MetaImage_Reader implements PlugIn {
                     ".");
             }
         }
-        else if (numChannels == 3) {
-            if (strElementType.equals("MET_UCHAR") || strElementType.equals("MET_UCHAR_ARRAY")) fi.fileType = FileInfo.RGB;
-            else if (strElementType.equals("MET_USHORT") || strElementType.equals("MET_USHORT_ARRAY"))
-                fi.fileType = FileInfo.RGB48;
-            else {
-                throw new IOException(
-                    "Unsupported element type: " +
-                    strElementType +
-                    ".");
-            }
-        }
         else {
             throw new IOException("Unsupported number of channels.");
         }
@@ -408,6 +433,113 @@ public class MetaImage_Reader implements PlugIn {
     }
 
 
+    /**
+     * Streams interleaved multi-component data plane by plane, splitting
+     * every plane into one slice per component. Only a single plane of raw
+     * data is held in memory besides the resulting stack.
+     */
+    private ImagePlus openChannels(FileInfo fi, String title) throws IOException {
+        int bpp = getBytesPerPixel(fi);
+        if (bpp == 0)
+            throw new IOException("Unsupported element type for multi-component data.");
+        InputStream is;
+        if (fi.compression == FileInfo.COMPRESSION_UNKNOWN) {
+            IJ.showStatus("Reading zlib-compressed " + fi.fileName + "...");
+            is = new ExtendedFileOpener(fi).createInputStream(fi);
+        }
+        else {
+            if (fi.longOffset < 0)
+                fi.longOffset = getOffset(fi);
+            IJ.showStatus("Reading " + fi.fileName + "...");
+            is = new FileInputStream(fi.directory + fi.fileName);
+        }
+        if (is == null)
+            throw new IOException("Could not open " + fi.fileName);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is, 1 << 20));
+        ImageStack stack = new ImageStack(fi.width, fi.height);
+        try {
+            long skip = fi.longOffset;
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0)
+                    throw new EOFException("Unexpected end of file in header.");
+                skip -= skipped;
+            }
+            int n = fi.width * fi.height;
+            byte[] plane = new byte[n * numChannels * bpp];
+            ByteBuffer buffer = ByteBuffer.wrap(plane).order(fi.intelByteOrder
+                ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            for (int z = 0; z < fi.nImages; ++z) {
+                in.readFully(plane);
+                buffer.rewind();
+                Object[] pixels = deinterleave(buffer, fi.fileType, n);
+                for (int c = 0; c < numChannels; ++c)
+                    stack.addSlice(null, pixels[c]);
+                IJ.showProgress(z + 1, fi.nImages);
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        ImagePlus imp = new ImagePlus(title, stack);
+        imp.setDimensions(numChannels, numSlices, numFrames);
+        Calibration cal = imp.getCalibration();
+        cal.pixelWidth  = fi.pixelWidth;
+        cal.pixelHeight = fi.pixelHeight;
+        cal.pixelDepth  = fi.pixelDepth;
+        if (fi.fileType == FileInfo.GRAY16_SIGNED)
+            cal.setSigned16BitCalibration();
+        if (numChannels <= 7)
+            imp = new CompositeImage(imp, CompositeImage.COMPOSITE);
+        else
+            imp.setOpenAsHyperStack(true);
+        return imp;
+    }
+
+
+    private Object[] deinterleave(ByteBuffer buffer, int fileType, int n) {
+        int nc = numChannels;
+        Object[] out = new Object[nc];
+        switch (fileType) {
+        case FileInfo.GRAY8: {
+            byte[][] p = new byte[nc][n];
+            for (int i = 0; i < n; ++i)
+                for (int c = 0; c < nc; ++c)
+                    p[c][i] = buffer.get();
+            System.arraycopy(p, 0, out, 0, nc);
+            break;
+        }
+        case FileInfo.GRAY16_SIGNED:
+        case FileInfo.GRAY16_UNSIGNED: {
+            // signed data is shifted like FileOpener does, see setSigned16BitCalibration
+            int shift = fileType == FileInfo.GRAY16_SIGNED ? 32768 : 0;
+            short[][] p = new short[nc][n];
+            for (int i = 0; i < n; ++i)
+                for (int c = 0; c < nc; ++c)
+                    p[c][i] = (short)(buffer.getShort() + shift);
+            System.arraycopy(p, 0, out, 0, nc);
+            break;
+        }
+        default: {
+            float[][] p = new float[nc][n];
+            for (int i = 0; i < n; ++i)
+                for (int c = 0; c < nc; ++c) {
+                    switch (fileType) {
+                    case FileInfo.GRAY32_INT:      p[c][i] = buffer.getInt(); break;
+                    case FileInfo.GRAY32_UNSIGNED: p[c][i] = buffer.getInt() & 0xffffffffL; break;
+                    case FileInfo.GRAY64_FLOAT:    p[c][i] = (float)buffer.getDouble(); break;
+                    default:                       p[c][i] = buffer.getFloat(); break;
+                    }
+                }
+            System.arraycopy(p, 0, out, 0, nc);
+            break;
+        }
+        }
+        return out;
+    }
+
+
     private int getBytesPerPixel(FileInfo fi) {
         int bpp = 0;
         switch (fi.fileType) {
@@ -417,8 +549,9 @@ public class MetaImage_Reader implements PlugIn {
         case FileInfo.GRAY32_INT:      return  4;
         case FileInfo.GRAY32_UNSIGNED: return  4;
         case FileInfo.GRAY32_FLOAT:    return  4;
-        case FileInfo.RGB:             return 24;
-        case FileInfo.RGB48:           return 48;
+        case FileInfo.GRAY64_FLOAT:    return  8;
+        case FileInfo.RGB:             return  3;
+        case FileInfo.RGB48:           return  6;
         default:
             break;
         }
@@ -426,9 +559,9 @@ public class MetaImage_Reader implements PlugIn {
     }
 
 
-    private long getOffset(FileInfo fi) {
+    long getOffset(FileInfo fi) {
         // Automatically calculate the header size.
-        int bpp = getBytesPerPixel(fi);
+        long bpp = getBytesPerPixel(fi) * numChannels;
         long dataBytes = bpp * fi.width * fi.height * fi.nImages;
         File file = new File(fi.directory + fi.fileName);
         return file.length() - dataBytes;
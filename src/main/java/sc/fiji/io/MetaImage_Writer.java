@@ -59,9 +59,12 @@ FITNESS FOR ANY PARTICULAR PURPOSE.
 ////extionsions by Roman Grothausmann:
 //01: ByteOrder fitting ITK
 //02: MHD/MHA-bug resoved
+//03: hyperstacks: frames written as NDims = 4, channels as interleaved components
 
 import java.io.*;
 import java.awt.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import ij.*;
 import ij.gui.*;
 import ij.io.*;
@@ -225,7 +228,18 @@ public final class MetaImage_Writer implements PlugIn {
     }
 
 
-    private void save(ImagePlus imp, String dir, String baseName) {
+    void save(ImagePlus imp, String dir, String baseName) {
+        try {
+            write(imp, dir, baseName);
+        }
+        catch (IOException e) {
+            IJ.error("MetaImage_Writer: " + e.getMessage());
+        }
+    }
+
+
+    /** Saves the image like {@link #save(ImagePlus, String, String)}, but lets failures through. */
+    void write(ImagePlus imp, String dir, String baseName) throws IOException {
 
 	String headerName;
 	String dataName;
@@ -248,19 +262,69 @@ public final class MetaImage_Writer implements PlugIn {
         if (!dir.endsWith(File.separator) && dir.length() > 0)
             dir += File.separator;
 
-        try {
-            IJ.showStatus("Saving " + headerName + "...");
-            if (writeHeader(imp, dir + headerName, dataName)) {
-                // Save data file.
-                IJ.showStatus("Writing " + dataName + "...");
-                if (imp.getStackSize() > 1)
-                    new ExtendedFileSaver(imp).saveAsRawStack(dir + dataName);
-                else
-                    new ExtendedFileSaver(imp).saveAsRaw(dir + dataName);
+        IJ.showStatus("Saving " + headerName + "...");
+        if (writeHeader(imp, dir + headerName, dataName)) {
+            // Save data file.
+            IJ.showStatus("Writing " + dataName + "...");
+            boolean written = true;
+            if (MetaImage_Writer.isMultiComponent(imp)) {
+                OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(dir + dataName, dataName.endsWith(".mha")));
+                try {
+                    MetaImage_Writer.writeInterleaved(imp, out, Prefs.intelByteOrder);
+                }
+                finally {
+                    out.close();
+                }
             }
+            else if (imp.getStackSize() > 1)
+                written = new ExtendedFileSaver(imp).saveAsRawStack(dir + dataName);
+            else
+                written = new ExtendedFileSaver(imp).saveAsRaw(dir + dataName);
+            if (!written)
+                throw new IOException("Could not write " + dir + dataName);
         }
-        catch (IOException e) {
-            IJ.error("MetaImage_Writer: " + e.getMessage());
+    }
+
+
+    /** Whether the channels of the image are saved as MetaImage components. */
+    static boolean isMultiComponent(ImagePlus imp) {
+        return imp.getNChannels() > 1 && imp.getBitDepth() != 24;
+    }
+
+
+    /**
+     * Writes the channels of a hyperstack as interleaved components,
+     * assembling one z/t plane at a time in a reusable buffer.
+     */
+    static void writeInterleaved(ImagePlus imp, OutputStream out, boolean intelByteOrder)
+        throws IOException
+    {
+        ImageStack stack = imp.getStack();
+        int nc = imp.getNChannels(), nz = imp.getNSlices(), nt = imp.getNFrames();
+        int n = imp.getWidth() * imp.getHeight();
+        int bitDepth = imp.getBitDepth();
+        int shift = imp.getCalibration().isSigned16Bit() ? 32768 : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(n * nc * (bitDepth / 8));
+        buffer.order(intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        Object[] pixels = new Object[nc];
+        for (int t = 1; t <= nt; ++t) {
+            for (int z = 1; z <= nz; ++z) {
+                for (int c = 0; c < nc; ++c)
+                    pixels[c] = stack.getPixels(imp.getStackIndex(c + 1, z, t));
+                buffer.clear();
+                for (int i = 0; i < n; ++i) {
+                    for (int c = 0; c < nc; ++c) {
+                        switch (bitDepth) {
+                        case 8:  buffer.put(((byte[])pixels[c])[i]); break;
+                        case 16: buffer.putShort((short)((((short[])pixels[c])[i] & 0xffff) - shift)); break;
+                        default: buffer.putFloat(((float[])pixels[c])[i]); break;
+                        }
+                    }
+                }
+                out.write(buffer.array(), 0, buffer.position());
+                IJ.showProgress((t - 1) * nz + z, nz * nt);
+            }
         }
     }
 
@@ -270,6 +334,8 @@ public final class MetaImage_Writer implements PlugIn {
     {
         FileInfo fi = imp.getFileInfo();
         String numChannels = "1", type = "MET_NONE";
+        if (MetaImage_Writer.isMultiComponent(imp))
+            numChannels = String.valueOf(imp.getNChannels());
 
         switch (fi.fileType) {
         case FileInfo.COLOR8:          type = "MET_UCHAR";  break;
@@ -293,29 +359,37 @@ public final class MetaImage_Writer implements PlugIn {
         FileOutputStream file = new FileOutputStream(path);
         PrintStream stream = new PrintStream(file);
         
-        int ndims = (imp.getStackSize() > 1) ? 3 : 2;
+        // channels are written as components, frames as the fourth dimension;
+        // RGB components live inside each slice and do not divide the stack
+        int nFrames = imp.getNFrames();
+        int nComponentSlices = MetaImage_Writer.isMultiComponent(imp) ? imp.getNChannels() : 1;
+        int nSlices = imp.getStackSize() / (nComponentSlices * nFrames);
+        int ndims = nFrames > 1 ? 4 : (nSlices > 1 ? 3 : 2);
 
         stream.println("ObjectType = Image");
-        if (ndims == 3)
-            stream.println("NDims = 3");
-        else
-            stream.println("NDims = 2");
+        stream.println("NDims = " + ndims);
         stream.println("BinaryData = True");
 
-        if (fi.intelByteOrder)
+        if (Prefs.intelByteOrder) // the data is written in this order
             stream.println("BinaryDataByteOrderMSB = False");
 	else
             stream.println("BinaryDataByteOrderMSB = True");
 
-        if (ndims == 3) {
-            stream.println("DimSize = " + fi.width + " " + fi.height + " " + fi.nImages);
+        if (ndims == 4) {
+            double frameInterval = imp.getCalibration().frameInterval;
+            stream.println("DimSize = " + fi.width + " " + fi.height + " " + nSlices + " " + nFrames);
+            stream.println("ElementSize = " + fi.pixelWidth + " " + fi.pixelHeight + " " + fi.pixelDepth
+                + " " + (frameInterval > 0 ? frameInterval : 1.0));
+        }
+        else if (ndims == 3) {
+            stream.println("DimSize = " + fi.width + " " + fi.height + " " + nSlices);
             stream.println("ElementSize = " + fi.pixelWidth + " " + fi.pixelHeight + " " + fi.pixelDepth);
         }
         else {
             stream.println("DimSize = " + fi.width + " " + fi.height);
             stream.println("ElementSize = " + fi.pixelWidth + " " + fi.pixelHeight);
         }
-        if (numChannels != "1")
+        if (!numChannels.equals("1"))
             stream.println("ElementNumberOfChannels = " + numChannels);
         stream.println("ElementType = " + type);
 
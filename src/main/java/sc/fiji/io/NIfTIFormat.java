@@ -0,0 +1,52 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.scijava.io.IOPlugin;
+import org.scijava.plugin.Plugin;
+
+/**
+ * Opens NIfTI-1 and NIfTI-2 files. Uncompressed, unscaled data is read
+ * lazily; compressed or scaled data is decoded up front.
+ */
+@Plugin(type = IOPlugin.class)
+public class NIfTIFormat extends AbstractStackFormat {
+
+	public NIfTIFormat() {
+		super(".nii", ".nii.gz");
+	}
+
+	@Override
+	ImagePlus openImage(final File file) throws IOException {
+		final NIfTI_Reader reader = new NIfTI_Reader();
+		final String directory = directory(file);
+		reader.readHeader(directory, file.getName());
+		if (reader.canOpenVirtual(directory, file.getName()))
+			return reader.openVirtual(directory, file.getName());
+		return reader.open(directory, file.getName());
+	}
+}
@@ -0,0 +1,524 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.io.FileInfo;
+import ij.io.OpenDialog;
+import ij.measure.Calibration;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This plugin loads NIfTI-1 and NIfTI-2 files.
+ * <p>
+ * Both single files ({@code .nii}, optionally gzipped as {@code .nii.gz})
+ * and {@code .hdr}/{@code .img} pairs are supported. The NIfTI-1 header is
+ * parsed by {@link Analyze_Reader}, whose layout it extends.
+ * </p>
+ * <ul>
+ * <li>Gzipped data is inflated on a separate thread while the slices are
+ * decoded.</li>
+ * <li>Non-trivial scl_slope/scl_inter values are applied, yielding 32-bit
+ * images.</li>
+ * <li>The 5th dimension is opened as channels, the 4th and any higher ones
+ * as frames.</li>
+ * </ul>
+ */
+public class NIfTI_Reader extends Analyze_Reader {
+
+	// the parsed header, NIfTI-1 values are widened to the NIfTI-2 types
+	long[] dim = new long[8];
+	double[] spacing = new double[8];
+	int dataType;
+	long voxOffset;
+	double slope, inter;
+	int units;
+	boolean nifti2;
+
+	public void run(String arg) {
+		OpenDialog od = new OpenDialog("Open NIfTI...", arg);
+		String directory = od.getDirectory();
+		String name = od.getFileName();
+		if (name==null) return;
+		IJ.showStatus("Opening: " + directory + name);
+		ImagePlus imp;
+		try {
+			boolean virtual = false;
+			if (arg.equals("") && !isCompressed(name)) {
+				readHeader(directory, name);
+				if (canOpenVirtual(directory, name) && dim[3] * dim[4] > 1) {
+					GenericDialog gd = new GenericDialog("Open NIfTI");
+					gd.addCheckbox("Use virtual stack", false);
+					gd.showDialog();
+					if (gd.wasCanceled()) return;
+					virtual = gd.getNextBoolean();
+				}
+			}
+			imp = virtual ? openVirtual(directory, name) : open(directory, name);
+		}
+		catch (IOException e) {
+			IJ.error("NIfTI Reader", "Could not open " + name + ": " + e.getMessage());
+			return;
+		}
+		if (imp.getStackSize()>1)
+			setStack(imp.getTitle(), imp.getStack());
+		else
+			setProcessor(imp.getTitle(), imp.getProcessor());
+		setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		if (imp.getNChannels() > 1 || imp.getNFrames() > 1) setOpenAsHyperStack(true);
+		setCalibration(imp.getCalibration());
+		setFileInfo(imp.getOriginalFileInfo());
+		if (arg.equals("")) show();
+	}
+
+	/** Opens all volumes of the given file. */
+	public ImagePlus open(String directory, String name) throws IOException {
+		InputStream in = openData(directory, name);
+		try {
+			return read(in, title(name), toFileInfo(directory, name));
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/** Opens an uncompressed, unscaled file as a virtual stack. */
+	ImagePlus openVirtual(String directory, String name) throws IOException {
+		readHeader(directory, name);
+		if (!canOpenVirtual(directory, name))
+			throw new IOException("Cannot open this file as a virtual stack");
+		FileInfo fi = toFileInfo(directory, name);
+		ImagePlus imp = openVirtual(fi);
+		imp.setTitle(title(name));
+		imp.setDimensions(1, (int)dim[3], fi.nImages / (int)dim[3]);
+		calibrate(imp.getCalibration());
+		return imp;
+	}
+
+	static boolean isCompressed(String name) {
+		return name.toLowerCase().endsWith(".gz");
+	}
+
+	static String title(String name) {
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".gz")) name = name.substring(0, name.length() - 3);
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	private static boolean isPair(String name) {
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".gz")) lower = lower.substring(0, lower.length() - 3);
+		return lower.endsWith(".hdr") || lower.endsWith(".img");
+	}
+
+	private static InputStream openStream(File file) throws IOException {
+		if (isCompressed(file.getName()))
+			return new ReadAheadInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16), 1 << 22, 4);
+		return new BufferedInputStream(new FileInputStream(file), 1 << 20);
+	}
+
+	/** Returns the file of a .hdr/.img pair with the given extension, gzipped or not. */
+	private static File pairFile(String directory, String name, String extension) {
+		String base = title(name);
+		File file = new File(directory, base + extension);
+		if (file.exists()) return file;
+		File gz = new File(directory, base + extension + ".gz");
+		return gz.exists() ? gz : new File(directory, base + extension.toUpperCase());
+	}
+
+	/** Reads the header and returns a stream positioned at the first voxel. */
+	InputStream openData(String directory, String name) throws IOException {
+		if (!isPair(name)) {
+			File file = new File(directory, name);
+			long skip = -1;
+			// reuse the header read by HandleExtraFileTypes, if any
+			byte[] cached = isCompressed(name) ? null : FileTypeRegistry.getHeader(file.getPath());
+			if (cached != null) {
+				try {
+					readHeader(new ByteArrayInputStream(cached));
+					skip = voxOffset;
+				}
+				catch (EOFException e) { /* read it from the file */ }
+			}
+			InputStream in = openStream(file);
+			try {
+				if (skip < 0) {
+					int headerSize = readHeader(in);
+					skip = voxOffset - headerSize;
+				}
+				skipFully(in, skip);
+			}
+			catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			return in;
+		}
+		readHeader(directory, name);
+		InputStream in = openStream(pairFile(directory, name, ".img"));
+		try {
+			skipFully(in, voxOffset);
+		}
+		catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return in;
+	}
+
+	/** Parses the header of the given file, which may be part of a pair. */
+	void readHeader(String directory, String name) throws IOException {
+		File file = isPair(name) ? pairFile(directory, name, ".hdr") : new File(directory, name);
+		InputStream in = isCompressed(file.getName()) ?
+			new GZIPInputStream(new FileInputStream(file)) : new FileInputStream(file);
+		try {
+			readHeader(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		if (n < 0) throw new IOException("Invalid vox_offset");
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0) throw new IOException("Unexpected end of file");
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * Parses a NIfTI-1 or NIfTI-2 header, detected by its size, and returns
+	 * the number of bytes consumed.
+	 */
+	int readHeader(InputStream in) throws IOException {
+		byte[] header = new byte[540];
+		DataInputStream input = new DataInputStream(in);
+		input.readFully(header, 0, 4);
+		ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.BIG_ENDIAN);
+		int size = buffer.getInt(0);
+		if (size == 348 || Integer.reverseBytes(size) == 348) {
+			InputStream rest = new SequenceInputStream(new ByteArrayInputStream(header, 0, 4), in);
+			FileInfo fi = readHeader(new DataInputStream(rest));
+			if (!magic.equals("n+1") && !magic.equals("ni1"))
+				throw new IOException("Not a NIfTI-1 file");
+			nifti2 = false;
+			for (int i = 0; i < 8; i++) {
+				dim[i] = dims[i];
+				spacing[i] = pixdim[i];
+			}
+			dataType = datatype & 0xffff;
+			voxOffset = fi.offset;
+			slope = sclSlope;
+			inter = sclInter;
+			units = xyztUnits & 0xff;
+			return 348;
+		}
+		if (size != 540 && Integer.reverseBytes(size) != 540)
+			throw new IOException("Not a NIfTI file");
+		littleEndian = size != 540;
+		input.readFully(header, 4, 536);
+		if (header[4] != 'n' || header[5] != '+' || header[6] != '2')
+			throw new IOException("Not a NIfTI-2 file");
+		nifti2 = true;
+		buffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		dataType = buffer.getShort(12) & 0xffff;
+		for (int i = 0; i < 8; i++) {
+			dim[i] = buffer.getLong(16 + 8 * i);
+			spacing[i] = buffer.getDouble(104 + 8 * i);
+		}
+		voxOffset = buffer.getLong(168);
+		slope = buffer.getDouble(176);
+		inter = buffer.getDouble(184);
+		units = buffer.getInt(500);
+		return 540;
+	}
+
+	/** Returns the bytes per voxel of a NIfTI data type, or 0 if unsupported. */
+	static int getBytesPerVoxel(int dataType) {
+		switch (dataType) {
+			case 2: case 256: return 1;    // DT_UINT8, DT_INT8
+			case 4: case 512: return 2;    // DT_INT16, DT_UINT16
+			case 8: case 16: case 768: return 4; // DT_INT32, DT_FLOAT32, DT_UINT32
+			case 64: case 1024: case 1280: return 8; // DT_FLOAT64, DT_INT64, DT_UINT64
+			case 128: return 3;            // DT_RGB24
+			case 2304: return 4;           // DT_RGBA32
+			default: return 0;
+		}
+	}
+
+	private boolean hasRGBData() {
+		return dataType == 128 || dataType == 2304;
+	}
+
+	/** Whether scl_slope/scl_inter change the stored values. */
+	boolean isScaled() {
+		return !hasRGBData() && slope != 0 && !Double.isNaN(slope) &&
+			(slope != 1 || inter != 0);
+	}
+
+	/**
+	 * Whether the file, whose header has been read, can be opened as a
+	 * virtual stack; the voxels of a pair may be gzipped even if the header
+	 * is not.
+	 */
+	boolean canOpenVirtual(String directory, String name) {
+		File data = isPair(name) ? pairFile(directory, name, ".img") : new File(directory, name);
+		return !isScaled() && dim(5) == 1 && toFileType() != 0 &&
+			!isCompressed(data.getName());
+	}
+
+	/** Returns the size along the given dimension, 1 if it is not used. */
+	long dim(int i) {
+		int n = (int)Math.max(1, Math.min(7, dim[0]));
+		return i > n || dim[i] < 1 ? 1 : dim[i];
+	}
+
+	private int toFileType() {
+		switch (dataType) {
+			case 2: return FileInfo.GRAY8;
+			case 4: return FileInfo.GRAY16_SIGNED;
+			case 512: return FileInfo.GRAY16_UNSIGNED;
+			case 8: return FileInfo.GRAY32_INT;
+			case 768: return FileInfo.GRAY32_UNSIGNED;
+			case 16: return FileInfo.GRAY32_FLOAT;
+			case 64: return FileInfo.GRAY64_FLOAT;
+			case 128: return FileInfo.RGB;
+			default: return 0;
+		}
+	}
+
+	FileInfo toFileInfo(String directory, String name) throws IOException {
+		long w = dim(1), h = dim(2), n = dim(3) * dim(4) * dim(5) * dim(6) * dim(7);
+		if (w * h * Math.max(1, getBytesPerVoxel(dataType)) > Integer.MAX_VALUE || n > Integer.MAX_VALUE)
+			throw new IOException("Image too large: " + w + "x" + h + "x" + n);
+		FileInfo fi = new FileInfo();
+		fi.fileFormat = FileInfo.RAW;
+		fi.fileType = toFileType();
+		fi.width = (int)w;
+		fi.height = (int)h;
+		fi.nImages = (int)n;
+		fi.intelByteOrder = littleEndian;
+		fi.pixelWidth = spacing(1);
+		fi.pixelHeight = spacing(2);
+		fi.pixelDepth = spacing(3);
+		fi.unit = getSpatialUnit();
+		fi.directory = directory;
+		fi.fileName = name;
+		if (isPair(name)) {
+			File img = pairFile(directory, name, ".img");
+			fi.fileName = img.getName();
+		}
+		fi.longOffset = voxOffset;
+		fi.offset = (int)Math.min(voxOffset, Integer.MAX_VALUE);
+		return fi;
+	}
+
+	private double spacing(int i) {
+		double value = Math.abs(spacing[i]);
+		return value > 0 && !Double.isNaN(value) && !Double.isInfinite(value) ? value : 1;
+	}
+
+	private String getSpatialUnit() {
+		switch (units & 0x07) {
+			case 1: return "m";
+			case 2: return "mm";
+			case 3: return "\u00B5m";
+			default: return null;
+		}
+	}
+
+	private String getTimeUnit() {
+		switch (units & 0x38) {
+			case 8: return "sec";
+			case 16: return "ms";
+			case 24: return "\u00B5s";
+			default: return null;
+		}
+	}
+
+	void calibrate(Calibration cal) {
+		cal.pixelWidth = spacing(1);
+		cal.pixelHeight = spacing(2);
+		cal.pixelDepth = spacing(3);
+		String unit = getSpatialUnit();
+		if (unit != null) cal.setUnit(unit);
+		if (dim(4) > 1 && spacing[4] > 0) {
+			cal.frameInterval = spacing[4];
+			String timeUnit = getTimeUnit();
+			if (timeUnit != null) cal.setTimeUnit(timeUnit);
+		}
+		if (dataType == 4 && !isScaled())
+			cal.setSigned16BitCalibration();
+	}
+
+	/** Decodes all slices from the stream, which is positioned at the first voxel. */
+	ImagePlus read(InputStream in, String title, FileInfo fi) throws IOException {
+		int bytesPerVoxel = getBytesPerVoxel(dataType);
+		if (bytesPerVoxel == 0)
+			throw new IOException("Unsupported NIfTI data type: " + dataType);
+		int w = fi.width, h = fi.height;
+		int nz = (int)dim(3), nt = (int)dim(4), nc = (int)dim(5);
+		int frames = fi.nImages / nz / nc;
+		boolean scaled = isScaled();
+		ByteOrder order = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		byte[] bytes = new byte[w * h * bytesPerVoxel];
+		DataInputStream input = new DataInputStream(in);
+
+		// the file stores x, y, z, t, channels and then the remaining
+		// dimensions, ImageJ wants channels, z and t
+		Object[] slices = new Object[fi.nImages];
+		for (int s = 0; s < slices.length; s++) {
+			input.readFully(bytes);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes).order(order);
+			int z = s % nz, rest = s / nz;
+			int t = rest % nt;
+			rest /= nt;
+			int c = rest % nc;
+			t += nt * (rest / nc);
+			slices[c + nc * (z + nz * t)] = decode(buffer, dataType, w, h, scaled ? slope : 1, scaled ? inter : 0, scaled);
+			IJ.showProgress(s + 1, slices.length);
+		}
+
+		ImageStack stack = new ImageStack(w, h);
+		for (int i = 0; i < slices.length; i++)
+			stack.addSlice(null, slices[i]);
+		ImagePlus imp = new ImagePlus(title, stack);
+		imp.setDimensions(nc, nz, frames);
+		calibrate(imp.getCalibration());
+		if (nc > 1 || frames > 1)
+			imp.setOpenAsHyperStack(true);
+		fi.fileType = toFileType();
+		imp.setFileInfo(fi);
+		return imp;
+	}
+
+	/**
+	 * Decodes one slice, reversing the rows since NIfTI stores the origin at
+	 * the lower left. Unscaled 8-bit, 16-bit and RGB data keep their type
+	 * (signed 16-bit values are offset by 32768), everything else becomes
+	 * float.
+	 */
+	static Object decode(ByteBuffer buffer, int dataType, int w, int h,
+		double slope, double inter, boolean scaled) throws IOException
+	{
+		int n = w * h;
+		if (!scaled) switch (dataType) {
+			case 2: {
+				byte[] pixels = new byte[n];
+				for (int y = h - 1; y >= 0; y--)
+					buffer.get(pixels, y * w, w);
+				return pixels;
+			}
+			case 4:
+			case 512: {
+				short[] pixels = new short[n];
+				ShortBuffer shorts = buffer.asShortBuffer();
+				for (int y = h - 1; y >= 0; y--)
+					shorts.get(pixels, y * w, w);
+				if (dataType == 4)
+					for (int i = 0; i < n; i++)
+						pixels[i] = (short)(pixels[i] + 32768);
+				return pixels;
+			}
+			case 128:
+			case 2304: {
+				int[] pixels = new int[n];
+				boolean alpha = dataType == 2304;
+				for (int y = h - 1; y >= 0; y--)
+					for (int x = y * w; x < (y + 1) * w; x++) {
+						int r = buffer.get() & 0xff, g = buffer.get() & 0xff, b = buffer.get() & 0xff;
+						if (alpha) buffer.get();
+						pixels[x] = 0xff000000 | (r << 16) | (g << 8) | b;
+					}
+				return pixels;
+			}
+		}
+		float[] pixels = new float[n];
+		for (int y = h - 1; y >= 0; y--) {
+			int offset = y * w;
+			switch (dataType) {
+				case 2:
+					for (int x = 0; x < w; x++) pixels[offset + x] = buffer.get() & 0xff;
+					break;
+				case 256:
+					for (int x = 0; x < w; x++) pixels[offset + x] = buffer.get();
+					break;
+				case 4:
+					for (int x = 0; x < w; x++) pixels[offset + x] = buffer.getShort();
+					break;
+				case 512:
+					for (int x = 0; x < w; x++) pixels[offset + x] = buffer.getShort() & 0xffff;
+					break;
+				case 8:
+					for (int x = 0; x < w; x++) pixels[offset + x] = buffer.getInt();
+					break;
+				case 768:
+					for (int x = 0; x < w; x++) pixels[offset + x] = buffer.getInt() & 0xffffffffl;
+					break;
+				case 16:
+					buffer.asFloatBuffer().get(pixels, offset, w);
+					buffer.position(buffer.position() + 4 * w);
+					break;
+				case 64:
+					for (int x = 0; x < w; x++) pixels[offset + x] = (float)buffer.getDouble();
+					break;
+				case 1024:
+					for (int x = 0; x < w; x++) pixels[offset + x] = buffer.getLong();
+					break;
+				case 1280:
+					for (int x = 0; x < w; x++) {
+						long value = buffer.getLong();
+						pixels[offset + x] = value >= 0 ? value : value + 0x1p64f;
+					}
+					break;
+				default:
+					throw new IOException("Unsupported NIfTI data type: " + dataType);
+			}
+			if (scaled)
+				for (int x = offset; x < offset + w; x++)
+					pixels[x] = (float)(pixels[x] * slope + inter);
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,198 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.io.SaveDialog;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This plugin saves single-file NIfTI images ({@code .nii}), gzipped when
+ * the file name ends in {@code .gz}.
+ * <p>
+ * A NIfTI-1 header is written unless one of the dimensions exceeds 32767,
+ * in which case the 64-bit NIfTI-2 header is used. Channels are stored as
+ * the 5th dimension, frames as the 4th; the data is little endian.
+ * </p>
+ */
+public final class NIfTI_Writer implements PlugIn {
+
+	public void run(String arg) {
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp==null) {
+			IJ.noImage();
+			return;
+		}
+		String path = arg;
+		if (arg==null || arg.equals("")) {
+			SaveDialog sd = new SaveDialog("Save as NIfTI", imp.getTitle(), ".nii");
+			if (sd.getFileName()==null) return;
+			path = sd.getDirectory() + sd.getFileName();
+		}
+		else if (new File(arg).isDirectory())
+			path = new File(arg, imp.getTitle() + ".nii").getPath();
+		IJ.showStatus("Saving as NIfTI: " + path);
+		try {
+			save(imp, path);
+		}
+		catch (IOException e) {
+			IJ.error("NIfTI Writer", "Could not save " + path + ": " + e.getMessage());
+		}
+		IJ.showStatus("");
+	}
+
+	public static void save(ImagePlus imp, String path) throws IOException {
+		int bitDepth = imp.getBitDepth();
+		boolean signed = bitDepth == 16 && imp.getCalibration().isSigned16Bit();
+		short datatype;
+		switch (bitDepth) {
+			case 8: datatype = 2; break;                 // DT_UINT8
+			case 16: datatype = signed ? (short)4 : 512; break; // DT_INT16, DT_UINT16
+			case 24: datatype = 128; break;              // DT_RGB24
+			default: datatype = 16; break;               // DT_FLOAT32
+		}
+		int[] dim = { imp.getWidth(), imp.getHeight(), imp.getNSlices(), imp.getNFrames(), imp.getNChannels() };
+		boolean nifti2 = false;
+		for (int d : dim)
+			if (d > Short.MAX_VALUE) nifti2 = true;
+		int rank = dim[4] > 1 ? 5 : dim[3] > 1 ? 4 : dim[2] > 1 ? 3 : 2;
+		ByteBuffer header = nifti2 ?
+			createNifti2Header(imp, dim, rank, datatype) : createNifti1Header(imp, dim, rank, datatype);
+
+		OutputStream out = new FileOutputStream(path);
+		if (path.toLowerCase().endsWith(".gz"))
+			out = new GZIPOutputStream(out, 1 << 16);
+		out = new BufferedOutputStream(out, 1 << 20);
+		try {
+			out.write(header.array());
+			writeImage(imp, out, bitDepth, signed);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static int getBitsPerVoxel(int datatype) {
+		switch (datatype) {
+			case 2: return 8;
+			case 4: case 512: return 16;
+			case 128: return 24;
+			default: return 32;
+		}
+	}
+
+	private static int getUnits(Calibration cal) {
+		String unit = cal.getUnit();
+		int units = 0;
+		if (unit.equals("m") || unit.equals("meter")) units = 1;
+		else if (unit.equals("mm")) units = 2;
+		else if (unit.equals("\u00B5m") || unit.equals("um") || unit.equals("micron")) units = 3;
+		String timeUnit = cal.getTimeUnit();
+		if (timeUnit.equals("sec") || timeUnit.equals("s")) units |= 8;
+		else if (timeUnit.equals("ms") || timeUnit.equals("msec")) units |= 16;
+		else if (timeUnit.equals("\u00B5s") || timeUnit.equals("us")) units |= 24;
+		return units;
+	}
+
+	private static ByteBuffer createNifti1Header(ImagePlus imp, int[] dim, int rank, short datatype) {
+		Calibration cal = imp.getCalibration();
+		ByteBuffer header = ByteBuffer.allocate(352).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0, 348);                       // sizeof_hdr
+		header.put(38, (byte)'r');                   // regular
+		header.putShort(40, (short)rank);            // dim[0]
+		for (int i = 1; i < 8; i++)
+			header.putShort(40 + 2 * i, (short)(i <= dim.length ? dim[i - 1] : 1)); // dim[1-7]
+		header.putShort(70, datatype);               // datatype
+		header.putShort(72, (short)getBitsPerVoxel(datatype)); // bitpix
+		header.putFloat(76, 1);                      // pixdim[0] (qfac)
+		header.putFloat(80, (float)cal.pixelWidth);  // pixdim[1]
+		header.putFloat(84, (float)cal.pixelHeight); // pixdim[2]
+		header.putFloat(88, (float)cal.pixelDepth);  // pixdim[3]
+		header.putFloat(92, (float)cal.frameInterval); // pixdim[4]
+		header.putFloat(108, 352);                   // vox_offset
+		header.putFloat(112, 1);                     // scl_slope
+		header.put(123, (byte)getUnits(cal));        // xyzt_units
+		putString(header, 148, imp.getTitle(), 80);  // descrip
+		putString(header, 344, "n+1", 4);            // magic
+		return header;                               // extension[4] stays 0
+	}
+
+	private static ByteBuffer createNifti2Header(ImagePlus imp, int[] dim, int rank, short datatype) {
+		Calibration cal = imp.getCalibration();
+		ByteBuffer header = ByteBuffer.allocate(544).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0, 540);                       // sizeof_hdr
+		header.position(4);
+		header.put(new byte[] { 'n', '+', '2', 0, '\r', '\n', 0x1a, '\n' }); // magic
+		header.position(0);
+		header.putShort(12, datatype);               // datatype
+		header.putShort(14, (short)getBitsPerVoxel(datatype)); // bitpix
+		header.putLong(16, rank);                    // dim[0]
+		for (int i = 1; i < 8; i++)
+			header.putLong(16 + 8 * i, i <= dim.length ? dim[i - 1] : 1); // dim[1-7]
+		header.putDouble(104, 1);                    // pixdim[0] (qfac)
+		header.putDouble(112, cal.pixelWidth);       // pixdim[1]
+		header.putDouble(120, cal.pixelHeight);      // pixdim[2]
+		header.putDouble(128, cal.pixelDepth);       // pixdim[3]
+		header.putDouble(136, cal.frameInterval);    // pixdim[4]
+		header.putLong(168, 544);                    // vox_offset
+		header.putDouble(176, 1);                    // scl_slope
+		putString(header, 240, imp.getTitle(), 80);  // descrip
+		header.putInt(500, getUnits(cal));           // xyzt_units
+		return header;                               // extension[4] stays 0
+	}
+
+	private static void putString(ByteBuffer header, int offset, String value, int length) {
+		for (int i = 0; i < Math.min(value.length(), length - 1); i++)
+			header.put(offset + i, (byte)value.charAt(i));
+	}
+
+	/**
+	 * Streams the voxels volume by volume (z fastest, then frames, then
+	 * channels), little-endian and with the rows of every slice bottom-up.
+	 */
+	private static void writeImage(ImagePlus imp, OutputStream out, int bitDepth, boolean signed) throws IOException {
+		ImageStack stack = imp.getStack();
+		int nc = imp.getNChannels(), nz = imp.getNSlices(), nt = imp.getNFrames();
+		Analyze_Writer.RowWriter rows = new Analyze_Writer.RowWriter(imp.getWidth(), imp.getHeight(),
+			bitDepth, signed ? 32768 : 0, ByteOrder.LITTLE_ENDIAN);
+		int done = 0, n = nc * nz * nt;
+		for (int c = 1; c <= nc; c++)
+			for (int t = 1; t <= nt; t++)
+				for (int z = 1; z <= nz; z++) {
+					rows.writeSlice(stack.getPixels(imp.getStackIndex(c, z, t)), out);
+					IJ.showProgress(++done, n);
+				}
+	}
+}
@@ -152,9 +152,17 @@ public class Nrrd_Reader extends ImagePlus implements PlugIn
 		}
 		if(imp==null) return null;
 		
-		// Copy over the spatial scale info which we found in readHeader
-		// nb the first we don't just overwrite the current calibration 
-		// because this may have density calibration for signed images 
+		calibrate(imp);
+
+		return imp; 
+	} 
+
+	/**
+	 * Copies over the spatial scale info which we found in readHeader.
+	 * nb we don't just overwrite the current calibration because this
+	 * may have density calibration for signed images
+	 */
+	void calibrate(ImagePlus imp) {
 		Calibration cal = imp.getCalibration();
 		Calibration spatialCal = this.getCalibration();
 		cal.pixelWidth=spatialCal.pixelWidth;
@@ -165,9 +173,7 @@ public class Nrrd_Reader extends ImagePlus implements PlugIn
 		cal.yOrigin=spatialCal.yOrigin;		
 		cal.zOrigin=spatialCal.zOrigin;
 		imp.setCalibration(cal);		
-
-		return imp; 
-	} 
+	}
 	
 	public NrrdFileInfo getHeaderInfo( String directory, String fileName ) throws IOException {
 
@@ -129,6 +129,16 @@ public class Nrrd_Writer implements PlugIn {
 			IJ.showMessage(noImages);
 			return;
 		}
+		try {
+			write(imp, directory, file);
+		} catch (IOException e) {
+			IJ.error("An error occured writing the file.\n \n" + e);
+			IJ.showStatus("");
+		}
+	}
+
+	/** Saves the image like {@link #save(ImagePlus, String, String)}, but lets failures through. */
+	void write(ImagePlus imp, String directory, String file) throws IOException {
 		FileInfo fi = imp.getFileInfo();
 		// This check and set is required to for ImageWriter to handle virtual
 		// stacks which have fi.pixels=null
@@ -140,8 +150,8 @@ public class Nrrd_Writer implements PlugIn {
 		if(imgTypeString==null) {
 			imgTypeString=imgType(fi.fileType);
 			if (imgTypeString.equals("unsupported")) {
-				IJ.showMessage(supportedTypes);
-				return;
+				imgTypeString = null;
+				throw new IOException(supportedTypes);
 			}
 		}		
 		// Set the fileName stored in the file info record to the
@@ -150,12 +160,7 @@ public class Nrrd_Writer implements PlugIn {
 		fi.directory=directory;
 		
 		// Actually write out the image
-		try {
-			writeImage(fi,imp.getCalibration()); 
-		} catch (IOException e) {
-			IJ.error("An error occured writing the file.\n \n" + e);
-			IJ.showStatus("");
-		}
+		writeImage(fi,imp.getCalibration()); 
 	}
 	
 	public void save(ImagePlus imp, String path){
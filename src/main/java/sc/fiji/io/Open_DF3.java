@@ -49,101 +49,214 @@ package sc.fiji.io;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.FileInfo;
 import ij.io.OpenDialog;
+import ij.plugin.FileInfoVirtualStack;
 import ij.plugin.PlugIn;
-import ij.process.ByteProcessor;
-import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
+import ij.util.ThreadUtil;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Open_DF3 implements PlugIn 
 {
+	/** Upper bound for the size of a single mapped region of the file. */
+	static final int MAX_MAP_SIZE = 1 << 30;
+
 	public void run( String arg )
 	{
 		File f = new File( arg );
+		boolean virtual = false;
 		if ( !f.exists() )
 		{
 			OpenDialog od = new OpenDialog( "Open df3 file.", null );
 			String dir = od.getDirectory();
 			String name = od.getFileName();
+			if ( name == null ) return;
 			f = new File( dir + name );
 			if ( !f.exists() )
 			{
 				IJ.error( "File not found." );
 				return;
 			}
+			GenericDialog gd = new GenericDialog( "Open df3" );
+			gd.addCheckbox( "Use virtual stack", false );
+			gd.showDialog();
+			if ( gd.wasCanceled() ) return;
+			virtual = gd.getNextBoolean();
 		}
 		
 		try
 		{
-			FileInputStream file = new FileInputStream( f );
-			
-			byte[] header = new byte[ 6 ];
-			file.read( header );
-			
-			int width = ( ( 0xff & header[ 0 ] ) << 8 ) + ( 0xff & header[ 1 ] );
-			int height = ( ( 0xff & header[ 2 ] ) << 8 ) + ( 0xff & header[ 3 ] );
-			int depth = ( ( 0xff & header[ 4 ] ) << 8 ) + ( 0xff & header[ 5 ] );
-			
-			byte typeLength = ( byte )( f.length() / width / depth / height );
-			
-			ImageStack stack = new ImageStack( width, height );
-			double min = Double.MAX_VALUE;
-			double max = Double.MIN_VALUE;
-			for ( int z = 0; z < depth; ++z )
+			open( f, virtual ).show();
+		}
+		catch ( Exception e )
+		{
+			IJ.error( "Opening '" + f + "' as df3 failed.\n" + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Opens a df3 file.  Voxels are stored big endian with 1, 2 or 4 bytes,
+	 * opened as 8-bit, 16-bit and 32-bit float images respectively.  The
+	 * file is mapped in regions of at most {@link #MAX_MAP_SIZE} bytes whose
+	 * slices are decoded in parallel, each thread keeping its own min and
+	 * max.  A virtual stack reads single slices on demand instead.
+	 */
+	static public ImagePlus open( final File f, final boolean virtual ) throws IOException
+	{
+		final RandomAccessFile file = new RandomAccessFile( f, "r" );
+		try
+		{
+			final int width = file.readUnsignedShort();
+			final int height = file.readUnsignedShort();
+			final int depth = file.readUnsignedShort();
+			final long voxels = ( long )width * height * depth;
+			if ( voxels == 0 )
+				throw new IOException( "Empty volume " + width + "x" + height + "x" + depth );
+			final int typeLength = ( int )( ( f.length() - 6 ) / voxels );
+			if ( typeLength != 1 && typeLength != 2 && typeLength != 4 )
+				throw new IOException( "Unsupported voxel size: " + ( f.length() - 6 ) + " bytes for " + voxels + " voxels" );
+			final String title = f.getName().replaceAll( ".df3$", "" );
+
+			if ( virtual )
+			{
+				final FileInfo fi = new FileInfo();
+				fi.fileFormat = FileInfo.RAW;
+				fi.fileType = typeLength == 1 ? FileInfo.GRAY8 : typeLength == 2 ? FileInfo.GRAY16_UNSIGNED : FileInfo.GRAY32_UNSIGNED;
+				fi.width = width;
+				fi.height = height;
+				fi.nImages = depth;
+				fi.offset = 6;
+				fi.intelByteOrder = false;
+				fi.directory = f.getAbsoluteFile().getParent() + File.separator;
+				fi.fileName = f.getName();
+				final ImagePlus imp = new ImagePlus( title, new FileInfoVirtualStack( fi, false ) );
+				imp.setFileInfo( fi );
+				return imp;
+			}
+
+			final int sliceLength = width * height;
+			final long sliceBytes = ( long )sliceLength * typeLength;
+			if ( sliceBytes > Integer.MAX_VALUE )
+				throw new IOException( "Slices of " + width + "x" + height + " are too large" );
+			final int perMap = ( int )Math.max( 1, MAX_MAP_SIZE / sliceBytes );
+			final Object[] slices = new Object[ depth ];
+			final Thread[] threads = ThreadUtil.createThreadArray( Math.min( depth, Prefs.getThreads() ) );
+			final double[][] minMax = new double[ threads.length ][];
+			final FileChannel channel = file.getChannel();
+			for ( int z = 0; z < depth; z += perMap )
 			{
-				ImageProcessor ip = null;
-				
-				byte[] slice = new byte[ height * width * typeLength ];
-				file.read( slice );
-				
-				switch ( typeLength )
+				final int first = z;
+				final int count = Math.min( perMap, depth - z );
+				final MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 6 + z * sliceBytes, count * sliceBytes );
+				final AtomicInteger ai = new AtomicInteger( 0 );
+				for ( int t = 0; t < threads.length; ++t )
 				{
-				case 1:
-					ip = new ByteProcessor( width, height, slice, null );
-					break;
-				case 2:
-					short[] shortSlice = new short[ height * width ];
-					for ( int i = 0; i < shortSlice.length; ++i )
+					final int thread = t;
+					threads[ t ] = new Thread()
 					{
-						int j = 2 * i;
-						int v = ( 0xff & slice[ j ] ) << 8;
-						v += 0xff & slice[ j + 1 ];
-						if ( v < min ) min = v;
-						if ( v > max ) max = v;
-						shortSlice[ i ] = ( short )v;
-					}
-					ip = new ShortProcessor( width, height, shortSlice, null );
-					break;
-				default: // case 4:
-					float[] floatSlice = new float[ height * width ];
-					for ( int i = 0; i < floatSlice.length; ++i )
-					{
-						int j = 4 * i;
-						long v = ( 0xffl & slice[ j ] ) << 24;
-						v += ( 0xffl & slice[ j + 1 ] ) << 16;
-						v += ( 0xffl & slice[ j + 2 ] ) << 8;
-						v += 0xffl & slice[ j + 3 ];
-						if ( v < min ) min = v;
-						if ( v > max ) max = v;
-						floatSlice[ i ] = v;
-					}
-					ip = new FloatProcessor( width, height, floatSlice, null );
+						public void run()
+						{
+							final ByteBuffer local = buf.duplicate().order( ByteOrder.BIG_ENDIAN );
+							double[] range = minMax[ thread ];
+							if ( range == null )
+								range = minMax[ thread ] = new double[] { Double.MAX_VALUE, -Double.MAX_VALUE };
+							for ( int k = ai.getAndIncrement(); k < count; k = ai.getAndIncrement() )
+							{
+								local.position( ( int )( k * sliceBytes ) );
+								slices[ first + k ] = decodeSlice( local, typeLength, sliceLength, range );
+							}
+						}
+					};
+				}
+				ThreadUtil.startAndJoin( threads );
+				IJ.showProgress( z + count, depth );
+			}
+
+			final ImageStack stack = new ImageStack( width, height );
+			for ( final Object pixels : slices )
+				stack.addSlice( null, pixels );
+			final ImagePlus imp = new ImagePlus( title, stack );
+			if ( typeLength > 1 )
+			{
+				double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+				for ( final double[] range : minMax )
+				{
+					if ( range == null ) continue;
+					min = Math.min( min, range[ 0 ] );
+					max = Math.max( max, range[ 1 ] );
 				}
-				IJ.showProgress( z, depth );
-				IJ.showStatus( "Reading: " + z + "/" + depth );
-				stack.addSlice( null, ip );
+				imp.setDisplayRange( min, max );
 			}
-			ImagePlus imp = new ImagePlus( f.getName().replaceAll( ".df3$", "" ), stack );
-			imp.setDisplayRange( min, max );
-			imp.show();
+			return imp;
 		}
-		catch ( Exception e )
+		finally
 		{
-			IJ.error( "Opening '" + f + "' as df3 failed.\n" + e.getMessage() );
+			file.close();
+		}
+	}
+
+	/**
+	 * Decodes one big endian slice starting at the buffer's position with
+	 * bulk gets, updating the {min, max} range of 16-bit and 32-bit data.
+	 */
+	static Object decodeSlice( final ByteBuffer buf, final int typeLength, final int n, final double[] range )
+	{
+		switch ( typeLength )
+		{
+		case 1:
+		{
+			final byte[] pixels = new byte[ n ];
+			buf.get( pixels );
+			return pixels;
+		}
+		case 2:
+		{
+			final short[] pixels = new short[ n ];
+			buf.asShortBuffer().get( pixels );
+			int min = 0xffff, max = 0;
+			for ( int i = 0; i < n; ++i )
+			{
+				final int v = pixels[ i ] & 0xffff;
+				if ( v < min ) min = v;
+				if ( v > max ) max = v;
+			}
+			if ( min < range[ 0 ] ) range[ 0 ] = min;
+			if ( max > range[ 1 ] ) range[ 1 ] = max;
+			return pixels;
+		}
+		default: // case 4:
+		{
+			final IntBuffer ints = buf.asIntBuffer();
+			final int[] row = new int[ Math.min( n, 1 << 16 ) ];
+			final float[] pixels = new float[ n ];
+			long min = 0xffffffffl, max = 0;
+			for ( int offset = 0; offset < n; offset += row.length )
+			{
+				final int length = Math.min( row.length, n - offset );
+				ints.get( row, 0, length );
+				for ( int i = 0; i < length; ++i )
+				{
+					final long v = row[ i ] & 0xffffffffl;
+					if ( v < min ) min = v;
+					if ( v > max ) max = v;
+					pixels[ offset + i ] = v;
+				}
+			}
+			if ( min < range[ 0 ] ) range[ 0 ] = min;
+			if ( max > range[ 1 ] ) range[ 1 ] = max;
+			return pixels;
+		}
 		}
 	}
 }
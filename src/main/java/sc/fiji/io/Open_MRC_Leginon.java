@@ -44,7 +44,10 @@ package sc.fiji.io;
  3 = short * 2, (used for complex data)
  4 = float * 2, (used for complex data)
  6 = unsigned 16-bit integers (non-standard)
+ 12 = 16-bit (IEEE 754 half precision) float (MRC2014)
  16 = unsigned char * 3 (for rgb data, non-standard)
+ 101 = 4-bit data packed two per byte, low nibble first;
+       rows are padded to a whole byte when nx is odd (MRC2014)
 
  4    int     nxstart;     Starting point of sub image.
  4    int     nystart;
@@ -174,124 +177,541 @@ package sc.fiji.io;
 
 	The size of the image is nx * ny * nz * (mode data size).
 */
+import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
 import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
-import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Open_MRC_Leginon extends ImagePlus implements PlugIn {
 
+	/** Upper bound for a single memory-mapped region of section data. */
+	static final int MAX_MAP_SIZE = 1 << 30;
+
 	/** Expects path as argument, or will ask for it and then open the image.*/
 	public void run(final String arg) {
 		String path = arg;
 		String directory = null;
 		String filename = null;
+		boolean virtual = false;
 		if (null == path || 0 == path.length()) {
 			OpenDialog od = new OpenDialog("Choose .mrc file", null);
 			directory = od.getDirectory();
 			if (null == directory) return;
 			filename = od.getFileName();
 			path = directory + "/" + filename;
-		} else {
-			// the argument is the path
-			File file = new File(path);
-			directory = file.getParent(); // could be a URL
-			filename = file.getName();
-			if (directory.startsWith("http:/")) directory = "http://" + directory.substring(6); // the double '//' has been eliminated by the File object call to getParent()
+
+			GenericDialog gd = new GenericDialog("Open MRC");
+			gd.addCheckbox("Use virtual stack", false);
+			gd.showDialog();
+			if (gd.wasCanceled()) return;
+			virtual = gd.getNextBoolean();
 		}
 
-		if (!directory.endsWith("/")) directory += "/"; // works in windows too
+		ImagePlus imp = open(path, virtual);
+		if (null == imp) return;
+
+		// integrate, the HandleExtraFileTypes way
+		setStack(imp.getTitle(), imp.getStack());
+		setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		setCalibration(imp.getCalibration());
+		Object obinfo = imp.getProperty("Info");
+		if (null != obinfo) setProperty("Info", obinfo);
+		setFileInfo(imp.getOriginalFileInfo());
+
+		if (null == arg || 0 == arg.length()) {
+			// was opened with a dialog
+			this.show();
+		}
+	}
 
-		InputStream is;
-		byte[] buf = new byte[0xd5];
+	/**
+	 * Opens an MRC file or http URL. Sections are decoded straight into
+	 * their pixel arrays with the rows stored bottom-up, so no separate flip
+	 * pass is needed: per definition, the MRC coordinate system is located at
+	 * the lower left corner in contrast to ImageJ's default.
+	 *
+	 * Complex data (modes 3 and 4) opens as two channels holding the real
+	 * and imaginary parts. Per-section metadata from FEI or SerialEM extended
+	 * headers becomes the slice labels.
+	 *
+	 * @param virtual whether to map the sections from the file on access
+	 *   instead of reading them all; ignored for URLs.
+	 */
+	static public ImagePlus open(final String path, final boolean virtual) {
+		final boolean url = 0 == path.indexOf("http://");
+		InputStream is = null;
 		try {
-			if (0 == path.indexOf("http://")) {
-				is = new java.net.URL(path).openStream();
+			// reuse the header read by HandleExtraFileTypes, unless the
+			// extended header did not fit into it
+			Header header = null;
+			final byte[] cached = url ? null : FileTypeRegistry.getHeader(path);
+			if (null != cached) {
+				try {
+					header = Header.read(new ByteArrayInputStream(cached));
+				} catch (EOFException e) { /* read it from the file */ }
+			}
+			if (null == header) {
+				is = url ? new java.net.URL(path).openStream() : new FileInputStream(path);
+				header = Header.read(is);
+			}
+			if (-1 == getType(header.mode)) {
+				IJ.log("MRC: unsupported mode " + header.mode);
+				return null;
+			}
+			final ImageStack stack;
+			if (url) {
+				stack = readStack(header, is);
 			} else {
-				is = new FileInputStream(path);
+				if (null != is) is.close();
+				is = null;
+				stack = virtual ? new MRCVirtualStack(path, header) : readStack(header, path);
 			}
-			is.read(buf, 0, buf.length);
-			is.close();
+			final String[] labels = header.getSectionLabels();
+			if (null != labels && !stack.isVirtual()) {
+				for (int z = 0; z < header.nz; ++z)
+					for (int c = 1; c <= header.channels(); ++c)
+						stack.setSliceLabel(labels[z], z * header.channels() + c);
+			}
+			final ImagePlus imp = new ImagePlus(header.toFileInfo(path).fileName, stack);
+			if (header.channels() > 1) imp.setDimensions(header.channels(), header.nz, 1);
+			if (1 == header.mode) imp.getCalibration().setSigned16BitCalibration();
+			imp.setProperty("Info", header.toString());
+			imp.setFileInfo(header.toFileInfo(path));
+			return imp;
 		} catch (IOException e) {
-			return;
+			IJ.log("MRC: could not open " + path + ": " + e.getMessage());
+			return null;
+		} finally {
+			if (null != is) try { is.close(); } catch (IOException e) {}
 		}
-		bigEndian = false;
-		if (readInt(buf, 0xd0) == 0x2050414d /* "MAP " */ &&
-				buf[0xd4] == 17)
-			bigEndian = true;
-		int w = readInt(buf, 0);
-		int h = readInt(buf, 4);
-		int n = readInt(buf, 8);
-		int dtype = getType(readInt(buf, 12));
-		if (-1 == dtype) return;
-		// Determine the size of the extended header correctly
-		// see http://www.biochem.mpg.de/doc_tom/index.html
-		long offset = 1024 + readInt(buf, 0x5c);
-		ImagePlus imp = openRaw(
-					dtype,
-					directory,
-					filename,
-					w,
-					h,
-					offset,
-					n,
-					0,
-					true, // little-endian
-					false);
+	}
 
-		// integrate, the HandleExtraFileTypes way
-		ImageStack stack = imp.getStack();
-		setStack(imp.getTitle(),stack);
-		setCalibration(imp.getCalibration());
+	/** Reads all sections from the stream positioned right after the extended header. */
+	static ImageStack readStack(final Header header, final InputStream is) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(is, 1 << 20));
+		final byte[] bytes = new byte[header.bytesPerSection()];
+		final ByteBuffer buf = ByteBuffer.wrap(bytes).order(header.order());
+		final ImageStack stack = new ImageStack(header.nx, header.ny);
+		for (int z = 0; z < header.nz; ++z) {
+			in.readFully(bytes);
+			buf.clear();
+			for (final Object pixels : readSection(buf, header.mode, header.nx, header.ny))
+				stack.addSlice(null, pixels);
+			IJ.showProgress(z + 1, header.nz);
+		}
+		return stack;
+	}
 
-		// NB: Per definition, the MRC coordinate system is located at the lower
-		// left corner in contrast to ImageJ's default. To fix that, flip the images
-		// vertically after reading.
-		for (int i=1; i<=stack.getSize(); ++i) {
-				ImageProcessor tempImageProcessor = stack.getProcessor(i);
-				tempImageProcessor.flipVertical();
+	/**
+	 * Reads all sections from memory-mapped regions of the file, decoding
+	 * the sections of each region in parallel.
+	 */
+	static ImageStack readStack(final Header header, final String path) throws IOException {
+		final long sectionBytes = header.bytesPerSection();
+		final int perMap = (int)Math.max(1, MAX_MAP_SIZE / sectionBytes);
+		final Object[][] sections = new Object[header.nz][];
+		final FileChannel channel = new RandomAccessFile(path, "r").getChannel();
+		try {
+			for (int z = 0; z < header.nz; z += perMap) {
+				final int first = z;
+				final int count = Math.min(perMap, header.nz - z);
+				final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+						header.dataOffset() + z * sectionBytes, count * sectionBytes);
+				final AtomicInteger ai = new AtomicInteger(0);
+				final Thread[] threads = ThreadUtil.createThreadArray(Math.min(count, Prefs.getThreads()));
+				for (int t = 0; t < threads.length; ++t) {
+					threads[t] = new Thread() {
+						public void run() {
+							// duplicates do not inherit the byte order
+							final ByteBuffer local = buf.duplicate().order(header.order());
+							for (int k = ai.getAndIncrement(); k < count; k = ai.getAndIncrement()) {
+								local.position((int)(k * sectionBytes));
+								sections[first + k] = readSection(local, header.mode, header.nx, header.ny);
+							}
+						}
+					};
+				}
+				ThreadUtil.startAndJoin(threads);
+				IJ.showProgress(z + count, header.nz);
+			}
+		} finally {
+			channel.close();
 		}
+		final ImageStack stack = new ImageStack(header.nx, header.ny);
+		for (final Object[] section : sections)
+			for (final Object pixels : section)
+				stack.addSlice(null, pixels);
+		return stack;
+	}
 
-		Object obinfo = imp.getProperty("Info");
-		if (null != obinfo) setProperty("Info", obinfo);
-		setFileInfo(imp.getOriginalFileInfo());
+	/**
+	 * Sums (or averages) the sections of an MRC movie while mapping them from
+	 * the file one region at a time, so only the accumulated image and the
+	 * section being decoded are held in memory.
+	 *
+	 * @param shifts per frame {dx, dy} whole-pixel shifts, or null
+	 */
+	static public ImagePlus sumFrames(final String path, final int[][] shifts, final boolean average) throws IOException {
+		final Header header;
+		final InputStream is = new FileInputStream(path);
+		try {
+			header = Header.read(is);
+		} finally {
+			is.close();
+		}
+		if (-1 == getType(header.mode) || header.channels() > 1)
+			throw new IOException("Cannot accumulate frames of MRC mode " + header.mode);
+		final FrameAccumulator accumulator = new FrameAccumulator(header.nx, header.ny, shifts);
+		final float offset = 1 == header.mode ? -32768 : 0;
+		final long sectionBytes = header.bytesPerSection();
+		final int perMap = (int)Math.max(1, MAX_MAP_SIZE / sectionBytes);
+		final FileChannel channel = new RandomAccessFile(path, "r").getChannel();
+		try {
+			for (int z = 0; z < header.nz; z += perMap) {
+				final int count = Math.min(perMap, header.nz - z);
+				final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+						header.dataOffset() + z * sectionBytes, count * sectionBytes);
+				buf.order(header.order());
+				for (int k = 0; k < count; ++k) {
+					accumulator.add(readSection(buf, header.mode, header.nx, header.ny)[0], offset);
+					IJ.showProgress(z + k + 1, header.nz);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		final String title = (average ? "AVG_" : "SUM_") + header.toFileInfo(path).fileName;
+		final ImagePlus imp = new ImagePlus(title, accumulator.getProcessor(average));
+		imp.setProperty("Info", header.toString() + (average ? "Average" : "Sum")
+				+ " of " + accumulator.getFrameCount() + " frames\n");
+		return imp;
+	}
 
-		if (null == arg || 0 == arg.length()) {
-			// was opened with a dialog
-			this.show();
+	/**
+	 * Decodes the section at the buffer's position into new pixel arrays,
+	 * one per channel, placing the first row of the file at the bottom of
+	 * the image, and advances the buffer past the section.
+	 */
+	static Object[] readSection(final ByteBuffer buf, final int mode, final int w, final int h) {
+		final int start = buf.position();
+		switch (mode) {
+			case 0: {
+				final byte[] pixels = new byte[w * h];
+				for (int y = h - 1; y >= 0; --y) buf.get(pixels, y * w, w);
+				return new Object[] { pixels };
+			}
+			case 1:
+			case 6: {
+				final short[] pixels = new short[w * h];
+				final ShortBuffer sb = buf.asShortBuffer();
+				for (int y = h - 1; y >= 0; --y) sb.get(pixels, y * w, w);
+				// signed data is shifted like ij.io.ImageReader does
+				if (1 == mode) for (int i = 0; i < pixels.length; ++i) pixels[i] += 32768;
+				buf.position(start + 2 * w * h);
+				return new Object[] { pixels };
+			}
+			case 2: {
+				final float[] pixels = new float[w * h];
+				final FloatBuffer fb = buf.asFloatBuffer();
+				for (int y = h - 1; y >= 0; --y) fb.get(pixels, y * w, w);
+				buf.position(start + 4 * w * h);
+				return new Object[] { pixels };
+			}
+			case 3: {
+				final float[] re = new float[w * h], im = new float[w * h];
+				final short[] row = new short[2 * w];
+				final ShortBuffer sb = buf.asShortBuffer();
+				for (int y = h - 1; y >= 0; --y) {
+					sb.get(row);
+					for (int x = 0, i = y * w; x < w; ++x, ++i) {
+						re[i] = row[2 * x];
+						im[i] = row[2 * x + 1];
+					}
+				}
+				buf.position(start + 4 * w * h);
+				return new Object[] { re, im };
+			}
+			case 4: {
+				final float[] re = new float[w * h], im = new float[w * h];
+				final float[] row = new float[2 * w];
+				final FloatBuffer fb = buf.asFloatBuffer();
+				for (int y = h - 1; y >= 0; --y) {
+					fb.get(row);
+					for (int x = 0, i = y * w; x < w; ++x, ++i) {
+						re[i] = row[2 * x];
+						im[i] = row[2 * x + 1];
+					}
+				}
+				buf.position(start + 8 * w * h);
+				return new Object[] { re, im };
+			}
+			case 12: {
+				final float[] table = halfFloats();
+				final float[] pixels = new float[w * h];
+				final short[] row = new short[w];
+				final ShortBuffer sb = buf.asShortBuffer();
+				for (int y = h - 1; y >= 0; --y) {
+					sb.get(row);
+					for (int x = 0, i = y * w; x < w; ++x, ++i)
+						pixels[i] = table[row[x] & 0xffff];
+				}
+				buf.position(start + 2 * w * h);
+				return new Object[] { pixels };
+			}
+			case 101: {
+				final byte[] pixels = new byte[w * h];
+				final byte[] row = new byte[(w + 1) / 2];
+				for (int y = h - 1; y >= 0; --y) {
+					buf.get(row);
+					final int i = y * w;
+					for (int x = 0; x < w - 1; x += 2) {
+						pixels[i + x] = (byte)(row[x >> 1] & 0x0f);
+						pixels[i + x + 1] = (byte)((row[x >> 1] >> 4) & 0x0f);
+					}
+					if (0 != (w & 1)) pixels[i + w - 1] = (byte)(row[w >> 1] & 0x0f);
+				}
+				return new Object[] { pixels };
+			}
+		}
+		throw new IllegalArgumentException("Unsupported MRC mode: " + mode);
+	}
+
+	private static float[] halfFloats;
+
+	/** Lookup table from the bits of a half precision float to its value. */
+	static synchronized float[] halfFloats() {
+		if (null == halfFloats) {
+			final float[] table = new float[1 << 16];
+			for (int h = 0; h < table.length; ++h) {
+				final int sign = (h & 0x8000) << 16;
+				final int exponent = (h >> 10) & 0x1f;
+				final int mantissa = h & 0x3ff;
+				if (0 == exponent) {
+					// zero or subnormal
+					final float value = mantissa / (float)(1 << 24);
+					table[h] = 0 == sign ? value : -value;
+				} else if (0x1f == exponent) {
+					// infinity or NaN
+					table[h] = Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+				} else {
+					table[h] = Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+				}
+			}
+			halfFloats = table;
 		}
+		return halfFloats;
 	}
 
-	private int getType(int datatype) {
+	static int getType(int datatype) {
 		switch (datatype) {
 			case 0: return FileInfo.GRAY8;
 			case 1: return FileInfo.GRAY16_SIGNED;
 			case 2: return FileInfo.GRAY32_FLOAT;
+			case 3: return FileInfo.GRAY32_FLOAT;
+			case 4: return FileInfo.GRAY32_FLOAT;
 			case 6: return FileInfo.GRAY16_UNSIGNED;
+			case 12: return FileInfo.GRAY32_FLOAT;
+			case 101: return FileInfo.GRAY8;
 		}
 		// else, error:
 		return -1;
 	}
 
-	private boolean bigEndian;
-
-	private final int readInt(byte[] buf, int start) {
-		/* need to expand without the sign */
-		int b0 = buf[start] & 0xff;
-		int b1 = buf[start + 1] & 0xff;
-		int b2 = buf[start + 2] & 0xff;
-		int b3 = buf[start + 3] & 0xff;
-		if (bigEndian)
-			return b3 | (b2 << 8) | (b1 << 16) | (b0 << 24);
-		return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+	/** The fields of the 1024 byte MRC header needed to locate and decode the sections. */
+	static class Header {
+		int nx, ny, nz;
+		int mode;
+		/** Number of bytes in the extended header. */
+		int next;
+		/** MRC2014 type of extended header, e.g. "SERI" or "FEI1". */
+		String exttyp;
+		/** Integers (or bytes, for SerialEM) per section in the extended header. */
+		int nint;
+		/** Reals per section (or SerialEM flags) in the extended header. */
+		int nreal;
+		byte[] extended = new byte[0];
+		boolean bigEndian;
+
+		/** Reads the header and the extended header following it. */
+		static Header read(final InputStream is) throws IOException {
+			final DataInputStream in = new DataInputStream(is);
+			final byte[] bytes = new byte[1024];
+			in.readFully(bytes);
+			final ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			final Header header = new Header();
+			if (buf.getInt(0xd0) == 0x2050414d /* "MAP " */ && bytes[0xd4] == 17) {
+				header.bigEndian = true;
+				buf.order(ByteOrder.BIG_ENDIAN);
+			}
+			header.nx = buf.getInt(0);
+			header.ny = buf.getInt(4);
+			header.nz = buf.getInt(8);
+			header.mode = buf.getInt(12);
+			// Determine the size of the extended header correctly
+			// see http://www.biochem.mpg.de/doc_tom/index.html
+			header.next = buf.getInt(0x5c);
+			header.exttyp = new String(bytes, 0x68, 4, "ISO-8859-1");
+			header.nint = buf.getShort(0x80);
+			header.nreal = buf.getShort(0x82);
+			if (header.next > 0) {
+				header.extended = new byte[header.next];
+				in.readFully(header.extended);
+			}
+			return header;
+		}
+
+		ByteOrder order() {
+			return bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		}
+
+		long dataOffset() {
+			return 1024L + next;
+		}
+
+		/** Complex data is split into real and imaginary channels. */
+		int channels() {
+			return 3 == mode || 4 == mode ? 2 : 1;
+		}
+
+		int bitDepth() {
+			switch (mode) {
+				case 0:
+				case 101: return 8;
+				case 1:
+				case 6: return 16;
+				default: return 32;
+			}
+		}
+
+		int bytesPerSection() {
+			switch (mode) {
+				case 0: return nx * ny;
+				case 1:
+				case 6:
+				case 12: return 2 * nx * ny;
+				case 4: return 8 * nx * ny;
+				case 101: return (nx + 1) / 2 * ny;
+				default: return 4 * nx * ny;
+			}
+		}
+
+		/**
+		 * Parses FEI (FEI1/FEI2) or SerialEM extended headers into one label
+		 * per section, or returns null when there is nothing to parse.
+		 */
+		String[] getSectionLabels() {
+			if (0 == extended.length || 0 == nz) return null;
+			final ByteBuffer buf = ByteBuffer.wrap(extended).order(order());
+			final String[] labels = new String[nz];
+			if (exttyp.startsWith("FEI")) {
+				// every section has a block whose size is given by its first field
+				final int size = buf.getInt(0);
+				if (size < 172) return null;
+				for (int z = 0; z < nz && (z + 1) * (long)size <= extended.length; ++z) {
+					final int o = z * size;
+					labels[z] = String.format("tilt=%.2f dose=%.4g stage=%.4g,%.4g,%.4g ht=%.0f pixel=%.4g",
+							buf.getDouble(o + 100), buf.getDouble(o + 92), buf.getDouble(o + 116),
+							buf.getDouble(o + 124), buf.getDouble(o + 132), buf.getDouble(o + 84),
+							buf.getDouble(o + 156));
+				}
+				return labels;
+			}
+			if (nint <= 0) return null;
+			if (isSerialEM()) {
+				for (int z = 0; z < nz && (z + 1) * (long)nint <= extended.length; ++z) {
+					buf.position(z * nint);
+					final StringBuilder label = new StringBuilder();
+					if (0 != (nreal & 1)) label.append("tilt=").append(buf.getShort() / 100f).append(' ');
+					if (0 != (nreal & 2)) label.append("piece=").append(buf.getShort()).append(',')
+						.append(buf.getShort()).append(',').append(buf.getShort()).append(' ');
+					if (0 != (nreal & 4)) label.append("stage=").append(buf.getShort() / 25f).append(',')
+						.append(buf.getShort() / 25f).append(' ');
+					if (0 != (nreal & 8)) label.append("mag=").append(buf.getShort() * 100).append(' ');
+					if (0 != (nreal & 16)) label.append("intensity=").append(buf.getShort() / 25000f).append(' ');
+					if (0 != (nreal & 32)) label.append("dose=").append(serialEMFloat(buf.getShort(), buf.getShort()));
+					labels[z] = label.toString().trim();
+				}
+				return labels;
+			}
+			// Agard format: nint integers followed by nreal floats per section
+			final int size = 4 * (nint + nreal);
+			for (int z = 0; z < nz && (z + 1) * (long)size <= extended.length; ++z) {
+				buf.position(z * size);
+				final StringBuilder label = new StringBuilder();
+				for (int i = 0; i < nint; ++i) label.append(buf.getInt()).append(' ');
+				for (int i = 0; i < nreal; ++i) label.append(buf.getFloat()).append(' ');
+				labels[z] = label.toString().trim();
+			}
+			return labels;
+		}
+
+		/** SerialEM stores nint bytes per section, laid out as flagged in nreal. */
+		private boolean isSerialEM() {
+			if (exttyp.equals("SERI")) return true;
+			final int[] flagBytes = { 2, 6, 4, 2, 2, 4, 2, 4, 2, 4, 2 };
+			int bytes = 0;
+			for (int bit = 0; bit < flagBytes.length; ++bit)
+				if (0 != (nreal & (1 << bit))) bytes += flagBytes[bit];
+			return bytes == nint;
+		}
+
+		private static float serialEMFloat(final short s1, final short s2) {
+			final int a1 = Math.abs(s1), a2 = Math.abs(s2);
+			final double value = (a1 * 256 + a2 % 256) * Math.pow(2, Math.signum(s2) * (a2 / 256));
+			return (float)(s1 < 0 ? -value : value);
+		}
+
+		FileInfo toFileInfo(final String path) {
+			final FileInfo fi = new FileInfo();
+			fi.fileFormat = FileInfo.RAW;
+			fi.fileType = getType(mode);
+			if (0 == path.indexOf("http://")) {
+				final int slash = path.lastIndexOf('/');
+				fi.fileName = path.substring(slash + 1);
+				fi.url = path.substring(0, slash + 1);
+			} else {
+				final File file = new File(path);
+				fi.fileName = file.getName();
+				fi.directory = file.getAbsoluteFile().getParent() + File.separator;
+			}
+			fi.width = nx;
+			fi.height = ny;
+			fi.nImages = nz;
+			fi.longOffset = dataOffset();
+			fi.intelByteOrder = !bigEndian;
+			return fi;
+		}
+
+		public String toString() {
+			return "MRC mode: " + mode + "\n"
+				+ "Dimensions: " + nx + " x " + ny + " x " + nz + "\n"
+				+ "Byte order: " + (bigEndian ? "big" : "little") + " endian\n"
+				+ "Extended header: " + next + " bytes"
+				+ (next > 0 ? " (" + exttyp.trim() + ", nint=" + nint + ", nreal=" + nreal + ")" : "") + "\n";
+		}
 	}
 
 	/** Copied and modified from ij.io.ImportDialog. @param imageType must be a static field from FileInfo class. */
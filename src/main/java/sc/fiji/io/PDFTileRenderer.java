@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import org.jpedal.PdfDecoder;
+import org.jpedal.objects.PdfPageData;
+
+/**
+ * Renders a PDF page at a high resolution one tile at a time. The decoder
+ * paints the decoded page into a single tile-sized buffer, translated to each
+ * tile in turn, so the page is never held in one giant BufferedImage; the
+ * tiles go straight into an 8-bit gray or RGB processor, or are rendered as
+ * they are viewed in a virtual stack.
+ */
+class PDFTileRenderer {
+
+	/** Pages with more pixels than this are rendered in tiles. */
+	static final long TILED_PIXELS = 1l << 24;
+	static final int TILE_SIZE = 1024;
+
+	private final PdfDecoder decoder;
+	private final int tileSize, columns, rows;
+	final int width, height;
+	private final BufferedImage tile;
+	private final int[] tilePixels;
+
+	/**
+	 * Decodes the page for painting; the decoder must not be used for
+	 * anything else while this renderer is in use.
+	 */
+	PDFTileRenderer(final PdfDecoder decoder, final int page, final float scale, final int tileSize) throws Exception {
+		this.decoder = decoder;
+		this.tileSize = tileSize;
+		final Dimension size = getPageSize(decoder, page);
+		width = (int)Math.ceil(size.width * scale);
+		height = (int)Math.ceil(size.height * scale);
+		columns = (width + tileSize - 1) / tileSize;
+		rows = (height + tileSize - 1) / tileSize;
+		decoder.setInset(0, 0);
+		decoder.setPageParameters(scale, page);
+		decoder.decodePage(page);
+		// Swing paints nothing for a component without a size, and must not
+		// go through a back buffer the size of the page
+		decoder.setSize(width, height);
+		decoder.setDoubleBuffered(false);
+		tile = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+		tilePixels = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Returns the size of a page at 100%, from its crop box and rotation,
+	 * without rendering it.
+	 */
+	static Dimension getPageSize(final PdfDecoder decoder, final int page) throws Exception {
+		final PdfPageData pageData = decoder.getPdfPageData();
+		final int width = pageData == null ? 0 : pageData.getCropBoxWidth(page);
+		final int height = pageData == null ? 0 : pageData.getCropBoxHeight(page);
+		if (width <= 0 || height <= 0)
+			throw new Exception("Can't read the size of page " + page);
+		return pageData.getRotation(page) % 180 == 0 ?
+			new Dimension(width, height) : new Dimension(height, width);
+	}
+
+	/** Whether a page of the given size at 100% needs tiles at this scale. */
+	static boolean needsTiles(final Dimension size, final double scale) {
+		return size.width * scale * size.height * scale > TILED_PIXELS;
+	}
+
+	/**
+	 * Renders a page at the given scale, in tiles if asked to, into an RGB or
+	 * an 8-bit gray processor.
+	 */
+	static ImageProcessor renderPage(final PdfDecoder decoder, final int page, final float scale,
+			final boolean tiled, final boolean gray) throws Exception {
+		if (tiled) {
+			final PDFTileRenderer renderer = new PDFTileRenderer(decoder, page, scale, TILE_SIZE);
+			final ImageProcessor ip = renderer.createProcessor(gray);
+			renderer.render(ip);
+			return ip;
+		}
+		decoder.setPageParameters(scale, page);
+		final BufferedImage image = decoder.getPageAsImage(page);
+		if (image == null)
+			throw new Exception("Can't read page " + page + ": " + decoder.getPageFailureMessage());
+		final ImageProcessor ip = new ColorProcessor(image);
+		image.flush();
+		return gray ? ip.convertToByte(false) : ip;
+	}
+
+	ImageProcessor createProcessor(final boolean gray) {
+		return gray ? new ByteProcessor(width, height) : new ColorProcessor(width, height);
+	}
+
+	/** Renders the whole page into a processor of the page size. */
+	void render(final ImageProcessor ip) {
+		for (int y = 0; y < height; y += tileSize)
+			for (int x = 0; x < width; x += tileSize) {
+				paintTile(x, y);
+				copyTile(ip, x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+			}
+	}
+
+	/**
+	 * Returns a virtual stack with one slice per tile, row by row; the tiles
+	 * at the right and bottom edges are padded with white.
+	 */
+	VirtualStack createTileStack(final boolean gray) {
+		final VirtualStack stack = new VirtualStack(tileSize, tileSize) {
+			@Override
+			public ImageProcessor getProcessor(final int n) {
+				final int x = ((n - 1) % columns) * tileSize, y = ((n - 1) / columns) * tileSize;
+				final ImageProcessor ip = gray ?
+					new ByteProcessor(tileSize, tileSize) : new ColorProcessor(tileSize, tileSize);
+				synchronized (PDFTileRenderer.this) {
+					paintTile(x, y);
+					copyTile(ip, 0, 0, tileSize, tileSize);
+				}
+				return ip;
+			}
+
+			@Override
+			public int getSize() {
+				return columns * rows;
+			}
+
+			@Override
+			public String getSliceLabel(final int n) {
+				return "x=" + ((n - 1) % columns) * tileSize + " y=" + ((n - 1) / columns) * tileSize;
+			}
+		};
+		stack.setBitDepth(gray ? 8 : 24);
+		return stack;
+	}
+
+	/** Paints the part of the page starting at (x, y) into the tile buffer. */
+	private synchronized void paintTile(final int x, final int y) {
+		final Graphics2D g = tile.createGraphics();
+		try {
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, tileSize, tileSize);
+			g.translate(-x, -y);
+			g.setClip(x, y, tileSize, tileSize);
+			decoder.paint(g);
+		} finally {
+			g.dispose();
+		}
+	}
+
+	/**
+	 * Copies the top left w x h pixels of the tile buffer to (x, y); the
+	 * processor is either 8-bit gray or RGB.
+	 */
+	private synchronized void copyTile(final ImageProcessor ip, final int x, final int y, final int w, final int h) {
+		final int stride = ip.getWidth();
+		if (ip instanceof ColorProcessor) {
+			final int[] pixels = (int[])ip.getPixels();
+			for (int j = 0; j < h; j++)
+				for (int i = 0, k = j * tileSize, l = (y + j) * stride + x; i < w; i++, k++, l++)
+					pixels[l] = 0xff000000 | tilePixels[k];
+			return;
+		}
+		final double[] weights = ColorProcessor.getWeightingFactors();
+		final byte[] pixels = (byte[])ip.getPixels();
+		for (int j = 0; j < h; j++)
+			for (int i = 0, k = j * tileSize, l = (y + j) * stride + x; i < w; i++, k++, l++) {
+				final int c = tilePixels[k];
+				pixels[l] = (byte)((c >> 16 & 0xff) * weights[0]
+					+ (c >> 8 & 0xff) * weights[1] + (c & 0xff) * weights[2] + 0.5);
+			}
+	}
+}
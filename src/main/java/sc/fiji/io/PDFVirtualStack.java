@@ -0,0 +1,293 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jpedal.PdfDecoder;
+
+/**
+ * A virtual stack over the pages of a PDF file. Pages are rendered on demand
+ * by a small pool of threads, each with its own {@link PdfDecoder} since the
+ * decoder is not thread-safe. The neighbours of the page being viewed are
+ * rendered ahead, and the most recently used pages are kept in a bounded
+ * cache. Idle threads exit after a while and close their decoder.
+ */
+class PDFVirtualStack extends VirtualStack {
+
+	/** Pages rendered ahead of, and behind, the page being viewed. */
+	private static final int PREFETCH_AHEAD = 2, PREFETCH_BEHIND = 1;
+	private static final long IDLE_SECONDS = 30;
+
+	private final String path;
+	private final int scale, nPages, capacity;
+	private final boolean tiled;
+	private final ThreadPoolExecutor executor;
+	private final ThreadLocal<PdfDecoder> decoders = new ThreadLocal<PdfDecoder>();
+
+	/** Rendered and pending pages, in access order. */
+	private final Map<Integer, Future<int[]>> pages;
+	/** Pending pages that were only queued ahead, and nobody waits for yet. */
+	private final Set<Integer> prefetched = new HashSet<Integer>();
+
+	/**
+	 * @param width the width of the first page; other pages are scaled to it
+	 * @param height the height of the first page
+	 * @param threads the number of decoders working in parallel
+	 * @param tiled whether the pages are too large to render in one piece
+	 */
+	PDFVirtualStack(final String path, final int scale, final int width, final int height,
+			final int nPages, final int threads, final boolean tiled) {
+		super(width, height);
+		this.path = path;
+		this.scale = scale;
+		this.tiled = tiled;
+		this.nPages = nPages;
+		setBitDepth(24);
+		final long pageBytes = 4l * width * height;
+		capacity = (int)Math.max(threads + PREFETCH_AHEAD + PREFETCH_BEHIND + 1,
+			Math.min(64, IJ.maxMemory() / 8 / pageBytes));
+		pages = new LinkedHashMap<Integer, Future<int[]>>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(final Map.Entry<Integer, Future<int[]>> eldest) {
+				return size() > capacity && eldest.getValue().isDone();
+			}
+		};
+		executor = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(new Runnable() {
+						public void run() {
+							try {
+								runnable.run();
+							} finally {
+								closeDecoder();
+							}
+						}
+					}, "PDF page renderer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/** Adds an already rendered page to the cache. */
+	void put(final int n, final ImageProcessor ip) {
+		final int[] pixels = (int[])toSlice(ip, getWidth(), getHeight()).getPixels();
+		synchronized (pages) {
+			pages.put(n, new Done(pixels));
+		}
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		while (true) {
+			final Future<int[]> page;
+			synchronized (pages) {
+				page = request(n);
+				prefetched.remove(n);
+				prefetch(n);
+			}
+			try {
+				// the cached pixels must not be modified
+				return new ColorProcessor(getWidth(), getHeight(), page.get().clone());
+			} catch (CancellationException e) {
+				// another thread moved away and dropped the request; try again
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new ColorProcessor(getWidth(), getHeight());
+			} catch (ExecutionException e) {
+				synchronized (pages) {
+					pages.remove(n);
+				}
+				IJ.log("PDF Viewer: could not render page " + n + ": " + e.getCause());
+				return new ColorProcessor(getWidth(), getHeight());
+			}
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return nPages;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return Integer.toString(n);
+	}
+
+	/**
+	 * Renders all pages in parallel into a regular stack; the pages are not
+	 * cached.
+	 */
+	ImageStack renderAll() throws Exception {
+		final List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+		for (int i = 1; i <= nPages; i++) {
+			final Future<int[]> page = cached(i);
+			futures.add(page != null ? page : executor.submit(renderer(i)));
+		}
+		final ImageStack stack = new ImageStack(getWidth(), getHeight());
+		try {
+			for (int i = 1; i <= nPages; i++) {
+				IJ.showProgress(i - 1, nPages);
+				stack.addSlice(Integer.toString(i), futures.get(i - 1).get());
+			}
+		} catch (ExecutionException e) {
+			for (final Future<int[]> future : futures)
+				future.cancel(false);
+			throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+		} finally {
+			IJ.showProgress(1.0);
+		}
+		return stack;
+	}
+
+	private Future<int[]> cached(final int n) {
+		synchronized (pages) {
+			return pages.get(n);
+		}
+	}
+
+	/** Must be called while holding the lock on {@link #pages}. */
+	private Future<int[]> request(final int n) {
+		Future<int[]> page = pages.get(n);
+		if (page == null || page.isCancelled()) {
+			page = executor.submit(renderer(n));
+			pages.put(n, page);
+		}
+		return page;
+	}
+
+	/**
+	 * Queues the neighbours of page n and drops prefetched pages that are no
+	 * longer near it, so that fast browsing does not queue up stale work.
+	 * Must be called while holding the lock on {@link #pages}.
+	 */
+	private void prefetch(final int n) {
+		final int first = Math.max(1, n - PREFETCH_BEHIND);
+		final int last = Math.min(nPages, n + PREFETCH_AHEAD);
+		for (final Iterator<Integer> it = prefetched.iterator(); it.hasNext(); ) {
+			final int page = it.next();
+			final Future<int[]> future = pages.get(page);
+			if (future == null || future.isDone())
+				it.remove();
+			else if (page < first || page > last) {
+				future.cancel(false);
+				pages.remove(page);
+				it.remove();
+			}
+		}
+		for (int i = n + 1; i <= last; i++)
+			if (!pages.containsKey(i)) {
+				request(i);
+				prefetched.add(i);
+			}
+		for (int i = n - 1; i >= first; i--)
+			if (!pages.containsKey(i)) {
+				request(i);
+				prefetched.add(i);
+			}
+	}
+
+	private Callable<int[]> renderer(final int n) {
+		return new Callable<int[]>() {
+			public int[] call() throws Exception {
+				PdfDecoder decoder = decoders.get();
+				if (decoder == null) {
+					decoder = PDF_Viewer.openDecoder(path, scale);
+					decoders.set(decoder);
+				}
+				final ImageProcessor ip = PDFTileRenderer.renderPage(decoder, n, scale, tiled, false);
+				return (int[])toSlice(ip, getWidth(), getHeight()).getPixels();
+			}
+		};
+	}
+
+	private void closeDecoder() {
+		final PdfDecoder decoder = decoders.get();
+		if (decoder != null) {
+			decoders.remove();
+			decoder.flushObjectValues(true);
+			decoder.closePdfFile();
+		}
+	}
+
+	/** Fits a page of a different size into the size of the first page. */
+	static ImageProcessor toSlice(final ImageProcessor ip, final int width, final int height) {
+		if (ip.getWidth() == width && ip.getHeight() == height)
+			return ip;
+		final ImageProcessor resized = ip.resize(width, ip.getHeight() * width / ip.getWidth());
+		final ColorProcessor cp = new ColorProcessor(width, height);
+		cp.insert(resized, 0, 0);
+		return cp;
+	}
+
+	/** A page that is already rendered. */
+	private static class Done implements Future<int[]> {
+
+		private final int[] pixels;
+
+		Done(final int[] pixels) {
+			this.pixels = pixels;
+		}
+
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return true;
+		}
+
+		public int[] get() {
+			return pixels;
+		}
+
+		public int[] get(final long timeout, final TimeUnit unit) {
+			return pixels;
+		}
+	}
+}
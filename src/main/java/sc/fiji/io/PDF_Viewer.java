@@ -40,12 +40,12 @@ You may contact Albert Cardona at acardona at ini phys ethz ch
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
-import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 
 import org.jpedal.PdfDecoder;
@@ -64,6 +64,9 @@ import org.jpedal.PdfDecoder;
  */
 public class PDF_Viewer extends ImagePlus implements PlugIn {
 
+	/** The most decoders rendering pages of one file in parallel. */
+	static final int MAX_DECODERS = 4;
+
 	int scaling = 1; // 1 is 100%
 	int page = 0;
 	
@@ -72,20 +75,23 @@ public class PDF_Viewer extends ImagePlus implements PlugIn {
 		if (null == path) return;
 		int scale = 1,
 		    page = 0; // zero means all pages
+		boolean virtual = false;
 		if (null == arg || 0 == arg.trim().length()) {
 			// user-opened from menus. Ask for params
 			GenericDialog gd = new GenericDialog("Options");
 			final String[] scales = new String[]{"100","200","300","400","500","600","700", "800","900","1000"};
 			gd.addChoice("Scale: ", scales, scales[0]);
 			gd.addNumericField("Page (0 for all): ", 0, 0);
+			gd.addCheckbox("Use virtual stack", false);
 			gd.showDialog();
 			if (gd.wasCanceled()) return;
 
 			scale = gd.getNextChoiceIndex() + 1;
 			page = (int)gd.getNextNumber();
 			if (page < 0) page = 0;
+			virtual = gd.getNextBoolean();
 		}
-		ImagePlus imp = this.open(path, page, scale);
+		ImagePlus imp = open(path, page, scale, virtual);
 		if (null == imp) return;
 
 		// Integrate data into this ImagePlus
@@ -129,6 +135,15 @@ public class PDF_Viewer extends ImagePlus implements PlugIn {
 	 * @param page ranges from 0 (all pages) to any index (starting at 1) of a page.
 	 * @param scale ranges from 1 (100%) to infinite, according to your RAM capabilities. */
 	static public ImagePlus open(final String path, int page, int scale) {
+		return open(path, page, scale, false);
+	}
+
+	/**
+	 * Like {@link #open(String, int, int)}; with {@code virtual} set, all
+	 * pages are opened as a virtual stack that renders them on demand.
+	 * Otherwise all pages are rendered up front, in parallel for local files.
+	 */
+	static public ImagePlus open(final String path, int page, int scale, boolean virtual) {
 		if (page < 0) {
 			IJ.log("Can't open negative page number " + page);
 			return null;
@@ -140,15 +155,7 @@ public class PDF_Viewer extends ImagePlus implements PlugIn {
 		// open the PDF
 		PdfDecoder decoder = null;
 		try {
-			decoder = new PdfDecoder();
-			decoder.setDefaultDisplayFont("SansSerif");
-			if (path.startsWith("http://")) decoder.openPdfFileFromURL(path);
-			else decoder.openPdfFile(path);
-			decoder.setPageParameters(scale, 1);
-			String msg = decoder.getPageFailureMessage();
-			if (null != msg && !msg.equals("")) {
-				IJ.log(msg);
-			}
+			decoder = openDecoder(path, scale);
 			int n_pages = decoder.getPageCount();
 			if (0 == n_pages) {
 				IJ.log("PDF file has zero pages.");
@@ -158,43 +165,26 @@ public class PDF_Viewer extends ImagePlus implements PlugIn {
 				IJ.log("Can't open page " + page + ": There are only " + n_pages);
 				return null;
 			}
+			// pages too large for one BufferedImage are rendered in tiles
+			boolean tiled = PDFTileRenderer.needsTiles(PDFTileRenderer.getPageSize(decoder, 0 == page ? 1 : page), scale);
 			if (0 == page) {
 				// Open all pages
-				// get first page
-				BufferedImage bi_first = decoder.getPageAsImage(1);
-				int width = bi_first.getWidth();
-				int height = bi_first.getHeight();
-				msg = decoder.getPageFailureMessage();
+				// get first page, which sets the size of the stack
+				ImageProcessor first = PDFTileRenderer.renderPage(decoder, 1, scale, tiled, false);
+				String msg = decoder.getPageFailureMessage();
 				if (null != msg && !msg.equals("")) {
 					IJ.log(msg);
 				}
-				if (null == bi_first) {
-					IJ.log("PDF Viewer: Can't read first page.");
-					return null;
-				}
-				ImageStack stack = new ImageStack(width, height);
-				stack.addSlice("1", new ColorProcessor(bi_first));
-				bi_first.flush();
-				// get rest of pages
-				for (int i=2; i<=n_pages; i++) {
-					BufferedImage bi = decoder.getPageAsImage(i);
-					ColorProcessor cp = null;
-					if (bi.getWidth() == width && bi.getHeight() == height) {
-						cp = new ColorProcessor(bi);
-					} else {
-						ColorProcessor cp2 = new ColorProcessor(bi);
-						cp2 = (ColorProcessor)cp2.resize(width, cp2.getHeight() * width / cp2.getWidth());
-						cp = new ColorProcessor(width, height);
-						cp.insert(cp2, 0, 0);
-					}
-					stack.addSlice(Integer.toString(i+1), cp);
-					bi.flush();
-				}
+				// decoders are not thread-safe: each renderer thread opens its own,
+				// which is only worth it for local files
+				int threads = path.startsWith("http://") ? 1 : Math.min(MAX_DECODERS, Prefs.getThreads());
+				PDFVirtualStack pages = new PDFVirtualStack(path, scale, first.getWidth(), first.getHeight(), n_pages, threads, tiled);
+				pages.put(1, first);
+				ImageStack stack = virtual ? pages : pages.renderAll();
 				return new ImagePlus(new File(path).getName(), stack);
 			} else {
 				// Open only the give page
-				BufferedImage bi = decoder.getPageAsImage(page);
-				return new ImagePlus(new File(path).getName(), bi);
+				return new ImagePlus(new File(path).getName(), PDFTileRenderer.renderPage(decoder, page, scale, tiled, false));
 			}
 		} catch (Exception e) {
 			IJ.log("Error: " + e);
@@ -208,4 +198,69 @@ public class PDF_Viewer extends ImagePlus implements PlugIn {
 		}
 		return null;
 	}
+
+	/**
+	 * Renders one page at the given resolution straight into an 8-bit gray
+	 * or RGB processor. The page is painted in tiles, so that pages at 600 or
+	 * 1200 dpi do not need a BufferedImage of the whole page on top of the
+	 * result.
+	 *
+	 * @param path The .pdf file path or http URL.
+	 * @param page the index (starting at 1) of the page.
+	 * @param dpi the resolution; 72 dpi is 100%.
+	 */
+	static public ImageProcessor render(final String path, int page, double dpi, boolean gray) throws Exception {
+		PdfDecoder decoder = openDecoder(path, 1);
+		try {
+			PDFTileRenderer renderer = new PDFTileRenderer(decoder, checkPage(decoder, page), (float)(dpi / 72), PDFTileRenderer.TILE_SIZE);
+			ImageProcessor ip = renderer.createProcessor(gray);
+			renderer.render(ip);
+			return ip;
+		} finally {
+			decoder.flushObjectValues(true);
+			decoder.closePdfFile();
+		}
+	}
+
+	/**
+	 * Opens one page at the given resolution as a virtual stack of square
+	 * tiles, row by row, which are rendered as they are viewed. The file
+	 * stays open for as long as the stack is in use.
+	 *
+	 * @param tileSize the width and height of the tiles, in pixels.
+	 */
+	static public ImagePlus openTiles(final String path, int page, double dpi, int tileSize, boolean gray) throws Exception {
+		PdfDecoder decoder = openDecoder(path, 1);
+		try {
+			PDFTileRenderer renderer = new PDFTileRenderer(decoder, checkPage(decoder, page), (float)(dpi / 72), tileSize);
+			ImagePlus imp = new ImagePlus(new File(path).getName() + " (page " + page + ")", renderer.createTileStack(gray));
+			imp.setProperty("Info", "Page size: " + renderer.width + "x" + renderer.height + " pixels at " + dpi + " dpi\n");
+			return imp;
+		} catch (Exception e) {
+			decoder.flushObjectValues(true);
+			decoder.closePdfFile();
+			throw e;
+		}
+	}
+
+	private static int checkPage(final PdfDecoder decoder, final int page) throws Exception {
+		int n_pages = decoder.getPageCount();
+		if (page < 1 || page > n_pages)
+			throw new Exception("Can't open page " + page + ": There are only " + n_pages);
+		return page;
+	}
+
+	/** Opens the PDF in a new decoder that renders at the given scale. */
+	static PdfDecoder openDecoder(final String path, final int scale) throws Exception {
+		PdfDecoder decoder = new PdfDecoder();
+		decoder.setDefaultDisplayFont("SansSerif");
+		if (path.startsWith("http://")) decoder.openPdfFileFromURL(path);
+		else decoder.openPdfFile(path);
+		decoder.setPageParameters(scale, 1);
+		String msg = decoder.getPageFailureMessage();
+		if (null != msg && !msg.equals("")) {
+			IJ.log(msg);
+		}
+		return decoder;
+	}
 }
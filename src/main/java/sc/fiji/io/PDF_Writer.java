@@ -40,11 +40,35 @@ import ij.ImageStack;
 import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
+import ij.io.FileSaver;
 import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 
 public class PDF_Writer implements PlugIn {
 
@@ -57,7 +81,8 @@ public class PDF_Writer implements PlugIn {
 		       saveAllImages=false,	// save all images or just the frontmost one
 		       includeAllSlices=false,	// save all slices in the stacks
 		       singleImage=false,		// save one image per page or as many as possible
-		       isLetter=true;			// output format is US Letter or A4
+		       isLetter=true,			// output format is US Letter or A4
+		       jpegRGB=false;			// compress RGB images as JPEG rather than lossless
 	int spcNm=0;                            // space to be reduced from image to fit the name   // will change to 30 if singleImage=true
 	int spcSz=0;                            // space to be reduced from image to fit the size    // not tested with US letter size
 
@@ -79,6 +104,7 @@ public class PDF_Writer implements PlugIn {
 			includeAllSlices = Prefs.get(PREF_KEY+"includeAllSlices", false);
 			singleImage = Prefs.get(PREF_KEY+"singleImage", false);
 			isLetter = Prefs.get(PREF_KEY+"isLetter", true);
+			jpegRGB = Prefs.get(PREF_KEY+"jpegRGB", false);
 		}
 	}
 
@@ -88,8 +114,20 @@ public class PDF_Writer implements PlugIn {
 	Paragraph paragraph;
 	Image image;
 
+	// images being encoded, in the order they are added to the document
+	ExecutorService encoders;
+	LinkedList<Future<Image>> encoded = new LinkedList<Future<Image>>();
+	LinkedList<String> encodedNames = new LinkedList<String>();
+	int maxEncoded;
+
 	protected void addImage(java.awt.Image awtImage, String printName)
 			throws DocumentException, IOException {
+		addImage(Image.getInstance(awtImage, null), printName);
+	}
+
+	protected void addImage(Image image, String printName)
+			throws DocumentException, IOException {
+		this.image = image;
 		if (! isFirst) {
 			if (singleImage) {
 				document.newPage();
@@ -117,7 +155,7 @@ public class PDF_Writer implements PlugIn {
 		}
 
 		if (showSize) {
-			paragraph = new Paragraph(awtImage.getWidth(null)+" x "+ awtImage.getHeight(null));
+			paragraph = new Paragraph((int)image.getWidth()+" x "+ (int)image.getHeight());
 			paragraph.setAlignment(Element.ALIGN_CENTER);
 			document.add(paragraph);
 			//spcSz = 40;
@@ -128,7 +166,6 @@ public class PDF_Writer implements PlugIn {
 			if (showSize) spcSz = 40;
 		}
 
-		image = Image.getInstance(awtImage, null);
 		//				if (scaleToFit && (awtImage.getWidth(null) > 520) || (awtImage.getHeight(null) > 720))
 		if (scaleToFit) {
 			if (isLetter)
@@ -142,6 +179,134 @@ public class PDF_Writer implements PlugIn {
 		isFirst = false;
 	}
 
+	/**
+	 * Encodes the image in the background; the images are added to the
+	 * document in the order they are queued, and only a few are kept in
+	 * memory at any time.
+	 */
+	protected void queueImage(final ImageProcessor ip, String printName)
+			throws DocumentException, IOException {
+		final boolean jpeg = jpegRGB;
+		encoded.add(encoders.submit(new Callable<Image>() {
+			public Image call() throws Exception {
+				return encode(ip, jpeg);
+			}
+		}));
+		encodedNames.add(printName);
+		while (encoded.size() > maxEncoded)
+			addNextImage();
+	}
+
+	void addNextImage() throws DocumentException, IOException {
+		Future<Image> future = encoded.removeFirst();
+		String printName = encodedNames.removeFirst();
+		try {
+			addImage(future.get(), printName);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while encoding " + printName);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DocumentException) throw (DocumentException)cause;
+			if (cause instanceof IOException) throw (IOException)cause;
+			throw new IOException("Could not encode " + printName, cause);
+		}
+	}
+
+	/**
+	 * Converts the pixels as displayed into a PDF image: RGB as Flate or
+	 * JPEG, and everything else through its display range and LUT as 8-bit
+	 * gray or, for color LUTs, RGB.
+	 */
+	static Image encode(ImageProcessor ip, boolean jpeg) throws DocumentException, IOException {
+		int w = ip.getWidth(), h = ip.getHeight();
+		if (ip instanceof ColorProcessor) {
+			int[] pixels = (int[])ip.getPixels();
+			if (jpeg) return Image.getInstance(toJPEG(pixels, w, h));
+			byte[] rgb = new byte[3 * pixels.length];
+			for (int i = 0, j = 0; i < pixels.length; i++) {
+				int c = pixels[i];
+				rgb[j++] = (byte)(c >> 16);
+				rgb[j++] = (byte)(c >> 8);
+				rgb[j++] = (byte)c;
+			}
+			return deflated(w, h, 3, rgb);
+		}
+
+		// 8-bit images apply their display range to the LUT, others to the pixels
+		byte[] indices;
+		ColorModel cm;
+		if (ip instanceof ByteProcessor) {
+			indices = (byte[])ip.getPixels();
+			cm = ip.getCurrentColorModel();
+		} else {
+			indices = (byte[])ip.convertToByte(true).getPixels();
+			cm = ip.getColorModel();
+		}
+		byte[] reds = new byte[256], greens = new byte[256], blues = new byte[256];
+		if (cm instanceof IndexColorModel) {
+			IndexColorModel lut = (IndexColorModel)cm;
+			lut.getReds(reds);
+			lut.getGreens(greens);
+			lut.getBlues(blues);
+		} else for (int i = 0; i < 256; i++)
+			reds[i] = greens[i] = blues[i] = (byte)i;
+
+		boolean gray = true, identity = true;
+		for (int i = 0; i < 256; i++) {
+			if (reds[i] != greens[i] || reds[i] != blues[i]) gray = false;
+			if (reds[i] != (byte)i) identity = false;
+		}
+		if (gray && identity) return deflated(w, h, 1, indices);
+		if (gray) {
+			byte[] data = new byte[indices.length];
+			for (int i = 0; i < data.length; i++)
+				data[i] = reds[indices[i] & 0xff];
+			return deflated(w, h, 1, data);
+		}
+		byte[] rgb = new byte[3 * indices.length];
+		for (int i = 0, j = 0; i < indices.length; i++) {
+			int index = indices[i] & 0xff;
+			rgb[j++] = reds[index];
+			rgb[j++] = greens[index];
+			rgb[j++] = blues[index];
+		}
+		return deflated(w, h, 3, rgb);
+	}
+
+	static Image deflated(int w, int h, int components, byte[] data) throws DocumentException, IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater, 65536);
+			stream.write(data);
+			stream.close();
+		} finally {
+			deflater.end();
+		}
+		Image image = Image.getInstance(w, h, components, 8, out.toByteArray());
+		image.setDeflated(true);
+		return image;
+	}
+
+	static byte[] toJPEG(int[] pixels, int w, int h) throws IOException {
+		BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		bi.getRaster().setDataElements(0, 0, w, h, pixels);
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+		try {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(FileSaver.getJpegQuality() / 100f);
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(bi, null, null), param);
+		} finally {
+			stream.close();
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
 	public void run (String arg) {
 		ImagePlus image = WindowManager.getCurrentImage();
 		if (image == null) {
@@ -157,6 +322,7 @@ public class PDF_Writer implements PlugIn {
 		gd.addCheckbox("Include all slices", includeAllSlices);
 		gd.addCheckbox("One image per page", singleImage);
 		gd.addCheckbox("US Letter", isLetter);
+		gd.addCheckbox("Compress RGB images as JPEG", jpegRGB);
 		gd.showDialog();
 		if (gd.wasCanceled()) return;
 
@@ -167,6 +333,7 @@ public class PDF_Writer implements PlugIn {
 		includeAllSlices = gd.getNextBoolean();
 		singleImage = gd.getNextBoolean();
 		isLetter = gd.getNextBoolean();
+		jpegRGB = gd.getNextBoolean();
 
 		if (canUsePrefs) {
 			Prefs.set(PREF_KEY+"showName", showName);
@@ -176,6 +343,7 @@ public class PDF_Writer implements PlugIn {
 			Prefs.set(PREF_KEY+"includeAllSlices", includeAllSlices);
 			Prefs.set(PREF_KEY+"singleImage", singleImage);
 			Prefs.set(PREF_KEY+"isLetter", isLetter);
+			Prefs.set(PREF_KEY+"jpegRGB", jpegRGB);
 		}
 
 		String name = IJ.getImage().getTitle();
@@ -187,8 +355,11 @@ public class PDF_Writer implements PlugIn {
 		document.addCreationDate();
 		document.addTitle(name);
 
+		int threads = Prefs.getThreads();
+		encoders = Executors.newFixedThreadPool(threads);
+		maxEncoded = 2 * threads;
 		try {
-			writer = PdfWriter.getInstance(document, new FileOutputStream(path));
+			writer = PdfWriter.getInstance(document, new BufferedOutputStream(new FileOutputStream(path)));
 			document.open();
 
 			for (int idx=1; idx<=WindowManager.getWindowCount(); idx++) {
@@ -203,22 +374,32 @@ public class PDF_Writer implements PlugIn {
 				if (includeAllSlices) {
 					ImageStack stack = image.getStack();
 					int total = stack.getSize();
-					for (int i = 1; i <= total; i++)
-						addImage(stack.getProcessor(i)
-							.createImage(),
+					for (int i = 1; i <= total; i++) {
+						IJ.showProgress(i - 1, total);
+						queueImage(stack.getProcessor(i),
 							printName + " (" + i
 							+ "/" + total + ")");
+					}
 				}
+				else if (image.isComposite())
+					queueImage(new ColorProcessor(image.getImage()), printName);
 				else
-					addImage(image.getImage(), printName);
+					queueImage(image.getProcessor(), printName);
 
 				if (! saveAllImages)
 					break;
 			}
+			while (! encoded.isEmpty())
+				addNextImage();
 		} catch(DocumentException de) {
 			IJ.showMessage("PDF Writer", de.getMessage());
 		} catch(IOException ioe) {
 			IJ.showMessage("PDF Writer", ioe.getMessage());
+		} finally {
+			encoders.shutdownNow();
+			encoded.clear();
+			encodedNames.clear();
+			IJ.showProgress(1.0);
 		}
 		document.close();
 		IJ.showStatus("");
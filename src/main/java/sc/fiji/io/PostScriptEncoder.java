@@ -0,0 +1,265 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes binary image data as text for PostScript: plain hex for Level 1,
+ * and for Level 2 and 3 ASCII85, optionally after RunLength or Flate
+ * compression. {@link #finish()} writes the end-of-data marker but leaves
+ * the underlying stream open, so that the rest of the program can follow.
+ */
+abstract class PostScriptEncoder extends OutputStream {
+
+	static final int HEX = 0, ASCII85 = 1, RUNLENGTH = 2, FLATE = 3;
+	static final String[] names = {
+		"Hex (Level 1)", "ASCII85 (Level 2)", "ASCII85 + RunLength (Level 2)", "ASCII85 + Flate (Level 3)"
+	};
+	private static final int[] languageLevels = { 1, 2, 2, 3 };
+	private static final String[] compressionFilters = { null, null, "/RunLengthDecode", "/FlateDecode" };
+
+	static int languageLevel(final int encoding) {
+		return languageLevels[encoding];
+	}
+
+	/**
+	 * Returns the name of the decoding filter to apply on top of the
+	 * ASCII85Decode filter, or null if there is none.
+	 */
+	static String compressionFilter(final int encoding) {
+		return compressionFilters[encoding];
+	}
+
+	static PostScriptEncoder create(final OutputStream out, final int encoding) {
+		switch (encoding) {
+		case HEX: return new Hex(out);
+		case ASCII85: return new ASCII85(out);
+		case RUNLENGTH: return new RunLength(new ASCII85(out));
+		case FLATE: return new Flate(new ASCII85(out));
+		default: throw new IllegalArgumentException("Unknown encoding: " + encoding);
+		}
+	}
+
+	/** Writes pending data and the end-of-data marker. */
+	abstract void finish() throws IOException;
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		for (int i = off; i < off + len; i++)
+			write(b[i]);
+	}
+
+	/** Writes the encoded text in lines, into a buffer of its own. */
+	private abstract static class Text extends PostScriptEncoder {
+		private static final int LINE_LENGTH = 76;
+
+		private final OutputStream out;
+		private final byte[] buffer = new byte[8192];
+		private int count, column;
+
+		Text(final OutputStream out) {
+			this.out = out;
+		}
+
+		final void put(final int c) throws IOException {
+			if (column >= LINE_LENGTH) {
+				putRaw('\n');
+				column = 0;
+			}
+			// a line starting with '%' would read as a (DSC) comment;
+			// the decode filters skip whitespace, so indent it instead
+			if (column == 0 && c == '%') {
+				putRaw(' ');
+				column++;
+			}
+			putRaw(c);
+			column++;
+		}
+
+		private void putRaw(final int c) throws IOException {
+			if (count == buffer.length) flushBuffer();
+			buffer[count++] = (byte)c;
+		}
+
+		final void flushBuffer() throws IOException {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+
+		final void end(final String marker) throws IOException {
+			for (int i = 0; i < marker.length(); i++)
+				putRaw(marker.charAt(i));
+			flushBuffer();
+		}
+	}
+
+	private static class Hex extends Text {
+		private static final byte[] digits = "0123456789abcdef".getBytes();
+
+		Hex(final OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			put(digits[(b >> 4) & 0xf]);
+			put(digits[b & 0xf]);
+		}
+
+		@Override
+		void finish() throws IOException {
+			end("\n");
+		}
+	}
+
+	/** Four bytes become five characters, four zero bytes a 'z'. */
+	private static class ASCII85 extends Text {
+		private final int[] digits = new int[5];
+		private int tuple, tupleBytes;
+
+		ASCII85(final OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			tuple = (tuple << 8) | (b & 0xff);
+			if (++tupleBytes == 4) {
+				encode(tuple, 4);
+				tuple = tupleBytes = 0;
+			}
+		}
+
+		private void encode(final int tuple, final int bytes) throws IOException {
+			if (tuple == 0 && bytes == 4) {
+				put('z');
+				return;
+			}
+			long value = tuple & 0xffffffffl;
+			for (int i = 4; i >= 0; i--) {
+				digits[i] = (int)(value % 85);
+				value /= 85;
+			}
+			for (int i = 0; i <= bytes; i++)
+				put('!' + digits[i]);
+		}
+
+		@Override
+		void finish() throws IOException {
+			if (tupleBytes > 0) {
+				// pad with zeros, and write one character more than there are bytes
+				encode(tuple << (8 * (4 - tupleBytes)), tupleBytes);
+				tuple = tupleBytes = 0;
+			}
+			end("~>\n");
+		}
+	}
+
+	/**
+	 * Runs of three or more bytes become a count and the byte; everything
+	 * else is copied in literal blocks of up to 128 bytes.
+	 */
+	private static class RunLength extends PostScriptEncoder {
+		private final PostScriptEncoder out;
+		private final byte[] literal = new byte[128];
+		private int literalCount, run = -1, runLength;
+
+		RunLength(final PostScriptEncoder out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			final int value = b & 0xff;
+			if (value == run && runLength < 128) {
+				runLength++;
+				return;
+			}
+			endRun();
+			run = value;
+			runLength = 1;
+		}
+
+		private void endRun() throws IOException {
+			if (runLength >= 3) {
+				flushLiteral();
+				out.write(257 - runLength);
+				out.write(run);
+			}
+			else for (int i = 0; i < runLength; i++) {
+				if (literalCount == literal.length) flushLiteral();
+				literal[literalCount++] = (byte)run;
+			}
+			runLength = 0;
+		}
+
+		private void flushLiteral() throws IOException {
+			if (literalCount == 0) return;
+			out.write(literalCount - 1);
+			out.write(literal, 0, literalCount);
+			literalCount = 0;
+		}
+
+		@Override
+		void finish() throws IOException {
+			endRun();
+			flushLiteral();
+			out.write(128);
+			out.finish();
+		}
+	}
+
+	private static class Flate extends PostScriptEncoder {
+		private final PostScriptEncoder out;
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		private final DeflaterOutputStream deflated;
+
+		Flate(final PostScriptEncoder out) {
+			this.out = out;
+			deflated = new DeflaterOutputStream(out, deflater, 65536);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			deflated.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			deflated.write(b, off, len);
+		}
+
+		@Override
+		void finish() throws IOException {
+			try {
+				deflated.finish();
+			} finally {
+				deflater.end();
+			}
+			out.finish();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads an input stream ahead in large chunks on a background thread.
+ * <p>
+ * Wrapping e.g. a {@link java.util.zip.GZIPInputStream} in this class lets
+ * the inflation of the next chunks overlap with the decoding of the current
+ * one. The wrapped stream is closed by the background thread once it is
+ * exhausted, or when this stream is closed.
+ * </p>
+ */
+class ReadAheadInputStream extends InputStream {
+	private final static byte[] EOF = new byte[0];
+
+	private final BlockingQueue<byte[]> queue;
+	private final Thread producer;
+	private volatile IOException failure;
+	private byte[] current;
+	private int position;
+	private boolean eof;
+
+	/**
+	 * @param in the stream to read from
+	 * @param chunkSize the size of each read-ahead buffer
+	 * @param chunks how many buffers may be read ahead
+	 */
+	ReadAheadInputStream(final InputStream in, final int chunkSize, int chunks) {
+		queue = new ArrayBlockingQueue<byte[]>(chunks);
+		producer = new Thread("Read-ahead") {
+			public void run() {
+				try {
+					for (;;) {
+						if (isInterrupted()) return;
+						byte[] chunk = new byte[chunkSize];
+						int n = 0;
+						while (n < chunkSize) {
+							int count = in.read(chunk, n, chunkSize - n);
+							if (count < 0) break;
+							n += count;
+						}
+						if (n < chunkSize) chunk = Arrays.copyOf(chunk, n);
+						if (n > 0) queue.put(chunk);
+						if (n < chunkSize) break;
+					}
+				} catch (IOException e) {
+					failure = e;
+				} catch (InterruptedException e) {
+					return; // closed by the reader
+				} finally {
+					try {
+						in.close();
+					} catch (IOException e) { /* ignore */ }
+				}
+				try {
+					queue.put(EOF);
+				} catch (InterruptedException e) { /* closed */ }
+			}
+		};
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	private boolean fill() throws IOException {
+		if (eof) return false;
+		if (current != null && position < current.length) return true;
+		try {
+			current = queue.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		position = 0;
+		if (current == EOF) {
+			eof = true;
+			if (failure != null) throw failure;
+			return false;
+		}
+		return true;
+	}
+
+	public int read() throws IOException {
+		if (!fill()) return -1;
+		return current[position++] & 0xff;
+	}
+
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		if (!fill()) return -1;
+		int n = Math.min(length, current.length - position);
+		System.arraycopy(current, position, buffer, offset, n);
+		position += n;
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && fill()) {
+			int count = (int)Math.min(n - skipped, current.length - position);
+			position += count;
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	public int available() {
+		return current == null || eof ? 0 : current.length - position;
+	}
+
+	public void close() {
+		eof = true;
+		producer.interrupt();
+		queue.clear();
+	}
+}
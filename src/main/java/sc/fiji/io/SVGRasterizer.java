@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.batik.bridge.BridgeContext;
+import org.apache.batik.bridge.DocumentLoader;
+import org.apache.batik.bridge.GVTBuilder;
+import org.apache.batik.bridge.UserAgentAdapter;
+import org.apache.batik.gvt.GraphicsNode;
+import org.apache.batik.gvt.renderer.StaticRenderer;
+import org.w3c.dom.svg.SVGDocument;
+import org.w3c.dom.svg.SVGSVGElement;
+
+/**
+ * Renders a parsed SVG file at any scale, one tile at a time, so that the
+ * off-screen buffer of the renderer stays the size of a tile. The Batik tree
+ * is not thread-safe: threads rendering in parallel each need their own
+ * rasterizer, or take turns on a shared one.
+ * <p>
+ * Parsed files are cached by {@link #get(File)}, so that rendering the same
+ * file again only repaints its tree. The off-screen buffers are released
+ * after each render, so a cached file holds on to its tree only.
+ * </p>
+ */
+class SVGRasterizer {
+
+	static final int TILE_SIZE = 2048;
+	/** The most parsed files kept in the cache. */
+	static final int CACHE_SIZE = 32;
+
+	private static final Map<String, SVGRasterizer> cache =
+		new LinkedHashMap<String, SVGRasterizer>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(final Map.Entry<String, SVGRasterizer> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		};
+
+	/** The origin and size of the SVG, in its own units. */
+	final float x, y, width, height;
+	/** The modification time and length of the file when it was parsed. */
+	private final long modified, length;
+	private final TileRenderer renderer = new TileRenderer();
+
+	/**
+	 * Returns the cached rasterizer for the file, parsing the file again
+	 * only if it changed since it was cached.
+	 */
+	static SVGRasterizer get(final File file) throws IOException {
+		final String key = file.getCanonicalPath();
+		synchronized (cache) {
+			final SVGRasterizer cached = cache.get(key);
+			if (cached != null && cached.modified == file.lastModified() && cached.length == file.length())
+				return cached;
+		}
+		// parse outside the lock: other files stay available meanwhile
+		final SVGRasterizer rasterizer = new SVGRasterizer(file);
+		synchronized (cache) {
+			cache.put(key, rasterizer);
+		}
+		return rasterizer;
+	}
+
+	static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	SVGRasterizer(final File file) throws IOException {
+		modified = file.lastModified();
+		length = file.length();
+		final UserAgentAdapter userAgent = new UserAgentAdapter();
+		final DocumentLoader loader = new DocumentLoader(userAgent);
+		final BridgeContext context = new BridgeContext(userAgent, loader);
+		userAgent.setBridgeContext(context);
+		final SVGDocument document = (SVGDocument)loader.loadDocument(file.toURI().toString());
+		final GraphicsNode root = new GVTBuilder().build(context, document);
+		renderer.setTree(root);
+		final SVGSVGElement svg = document.getRootElement();
+		x = svg.getX().getBaseVal().getValue();
+		y = svg.getY().getBaseVal().getValue();
+		width = svg.getWidth().getBaseVal().getValue();
+		height = svg.getHeight().getBaseVal().getValue();
+	}
+
+	/** The width in pixels at the given scale. */
+	int getWidth(final double scale) {
+		return Math.max(1, (int)Math.ceil(width * scale));
+	}
+
+	/** The height in pixels at the given scale. */
+	int getHeight(final double scale) {
+		return Math.max(1, (int)Math.ceil(height * scale));
+	}
+
+	/**
+	 * Renders the w x h pixels starting at (x0, y0) of the SVG scaled by
+	 * (scaleX, scaleY) into ARGB pixels, starting at offset with the given
+	 * stride.
+	 */
+	void render(final double scaleX, final double scaleY,
+			final int x0, final int y0, final int w, final int h,
+			final int[] pixels, final int offset, final int stride) {
+		final AffineTransform transform = new AffineTransform();
+		transform.translate(-x0 - x, -y0 - y);
+		transform.scale(scaleX, scaleY);
+		render(transform, w, h, pixels, offset, stride);
+	}
+
+	/**
+	 * Renders the SVG with the given transform from its own units to pixels
+	 * into w x h ARGB pixels, starting at offset with the given stride.
+	 * Larger images are painted in tiles of at most {@link #TILE_SIZE}.
+	 */
+	synchronized void render(final AffineTransform transform, final int w, final int h,
+			final int[] pixels, final int offset, final int stride) {
+		try {
+			for (int y0 = 0; y0 < h; y0 += TILE_SIZE)
+				for (int x0 = 0; x0 < w; x0 += TILE_SIZE) {
+					final int tileWidth = Math.min(TILE_SIZE, w - x0), tileHeight = Math.min(TILE_SIZE, h - y0);
+					final AffineTransform tile = AffineTransform.getTranslateInstance(-x0, -y0);
+					tile.concatenate(transform);
+					renderer.setTransform(tile);
+					renderer.updateOffScreen(tileWidth, tileHeight);
+					renderer.repaint(new Rectangle(0, 0, tileWidth, tileHeight));
+					renderer.getOffScreen().getRGB(0, 0, tileWidth, tileHeight,
+						pixels, offset + y0 * stride + x0, stride);
+				}
+		}
+		finally {
+			renderer.releaseOffScreen();
+		}
+	}
+
+	/** A renderer whose off-screen buffers can be dropped between renders. */
+	private static class TileRenderer extends StaticRenderer {
+
+		/**
+		 * Drops the off-screen images, which hold up to a full tile of ARGB
+		 * pixels each; the next render allocates them again.
+		 */
+		void releaseOffScreen() {
+			currentOffScreen = workingOffScreen = null;
+			currentBaseRaster = currentRaster = null;
+			workingBaseRaster = workingRaster = null;
+			flush();
+		}
+	}
+}
@@ -23,23 +23,33 @@ package sc.fiji.io;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
+import ij.VirtualStack;
 import ij.gui.GenericDialog;
 import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
 
-import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.batik.bridge.BridgeContext;
-import org.apache.batik.bridge.DocumentLoader;
-import org.apache.batik.bridge.GVTBuilder;
-import org.apache.batik.bridge.UserAgentAdapter;
-import org.apache.batik.gvt.renderer.StaticRenderer;
-import org.w3c.dom.svg.SVGDocument;
-import org.w3c.dom.svg.SVGSVGElement;
-
+/**
+ * Opens an SVG file as an RGB image. Call the static methods to rasterize
+ * at any scale, as a pyramid of resolutions or as a virtual stack of tiles
+ * for outputs too large to hold in memory, or with any transform. Parsed
+ * files are cached until they change, so rendering the same file again
+ * skips parsing it.
+ */
 public class SVG_Reader extends ImagePlus implements PlugIn {
 
 	/** Expects path as argument, or will ask for it and then open the image.*/
@@ -56,31 +66,17 @@ public class SVG_Reader extends ImagePlus implements PlugIn {
 			file = new File(directory + "/" + od.getFileName());
 		}
 
-		UserAgentAdapter userAgent = new UserAgentAdapter();
-		StaticRenderer renderer = new StaticRenderer();
-		DocumentLoader loader = new DocumentLoader(userAgent);
-		BridgeContext context =
-			new BridgeContext(userAgent, loader);
-		userAgent.setBridgeContext(context);
-		SVGDocument document;
+		SVGRasterizer svg;
 		try {
-			document = (SVGDocument)
-				loader.loadDocument(file.toURI().toString());
+			svg = SVGRasterizer.get(file);
 		} catch (IOException e) {
 			IJ.error("Could not open " + file.toURI());
 			return;
 		}
-		GVTBuilder builder = new GVTBuilder();
-		renderer.setTree(builder.build(context, document));
-		SVGSVGElement root = ((SVGDocument)document).getRootElement();
-		float svgX = root.getX().getBaseVal().getValue();
-		float svgY = root.getY().getBaseVal().getValue();
-		float svgWidth = root.getWidth().getBaseVal().getValue();
-		float svgHeight = root.getHeight().getBaseVal().getValue();
 
 		GenericDialog gd = new GenericDialog("SVG dimensions");
-		gd.addNumericField("width", svgWidth, 0);
-		gd.addNumericField("height", svgHeight, 0);
+		gd.addNumericField("width", svg.width, 0);
+		gd.addNumericField("height", svg.height, 0);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return;
@@ -88,18 +84,151 @@ public class SVG_Reader extends ImagePlus implements PlugIn {
 		int w = (int)gd.getNextNumber();
 		int h = (int)gd.getNextNumber();
 
-		AffineTransform transform = new AffineTransform();
-		transform.translate(-svgX, -svgY);
-		transform.scale(w / svgWidth, h / svgHeight);
-		renderer.setTransform(transform);
-		renderer.updateOffScreen(w, h);
-		Rectangle r = new Rectangle(0, 0, w, h);
-		renderer.repaint(r);
+		ColorProcessor cp;
+		try {
+			cp = render(svg, file, new int[] { w }, new int[] { h })[0];
+		} catch (IOException e) {
+			IJ.error("Could not render " + file.toURI() + ": " + e.getMessage());
+			return;
+		}
 
-		setTitle(file.getName());
-		setImage(renderer.getOffScreen());
+		setProcessor(file.getName(), cp);
 
 		if (arg.equals(""))
 			show();
 	}
+
+	/**
+	 * Rasterizes an SVG file at the given scale, 1 being its intrinsic size.
+	 * The image is rendered in tiles on several threads.
+	 */
+	static public ImagePlus open(final String path, final double scale) throws IOException {
+		return openPyramid(path, scale, 1)[0];
+	}
+
+	/**
+	 * Renders an SVG file into a width x height RGB processor, transforming
+	 * the coordinates of the SVG, in the units of its intrinsic size, to
+	 * pixels with the given transform. Uncovered pixels are transparent.
+	 */
+	static public ColorProcessor render(final String path, final AffineTransform transform,
+			final int width, final int height) throws IOException {
+		final ColorProcessor cp = new ColorProcessor(width, height);
+		SVGRasterizer.get(new File(path)).render(transform, width, height, (int[])cp.getPixels(), 0, width);
+		return cp;
+	}
+
+	/** Forgets all parsed SVG files. */
+	static public void clearCache() {
+		SVGRasterizer.clearCache();
+	}
+
+	/**
+	 * Rasterizes an SVG file at the given scale and at levels - 1 further
+	 * resolutions, each half the size of the previous one. All tiles of all
+	 * levels are rendered in parallel.
+	 */
+	static public ImagePlus[] openPyramid(final String path, final double scale, final int levels) throws IOException {
+		final File file = new File(path);
+		final SVGRasterizer svg = SVGRasterizer.get(file);
+		final int[] widths = new int[levels], heights = new int[levels];
+		for (int level = 0; level < levels; level++) {
+			widths[level] = svg.getWidth(scale / (1 << level));
+			heights[level] = svg.getHeight(scale / (1 << level));
+		}
+		final ColorProcessor[] processors = render(svg, file, widths, heights);
+		final ImagePlus[] images = new ImagePlus[levels];
+		for (int level = 0; level < levels; level++)
+			images[level] = new ImagePlus(file.getName() + (levels > 1 ? " (level " + level + ")" : ""), processors[level]);
+		return images;
+	}
+
+	/**
+	 * Opens an SVG file rasterized at the given scale as a virtual stack of
+	 * square tiles, row by row, which are rendered as they are viewed. The
+	 * tiles at the right and bottom edges are padded.
+	 */
+	static public ImagePlus openTiles(final String path, final double scale, final int tileSize) throws IOException {
+		final File file = new File(path);
+		final SVGRasterizer svg = SVGRasterizer.get(file);
+		final int width = svg.getWidth(scale), height = svg.getHeight(scale);
+		final int columns = (width + tileSize - 1) / tileSize, rows = (height + tileSize - 1) / tileSize;
+		final VirtualStack stack = new VirtualStack(tileSize, tileSize) {
+			@Override
+			public ImageProcessor getProcessor(final int n) {
+				final int x = ((n - 1) % columns) * tileSize, y = ((n - 1) / columns) * tileSize;
+				final int[] pixels = new int[tileSize * tileSize];
+				svg.render(scale, scale, x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y), pixels, 0, tileSize);
+				return new ColorProcessor(tileSize, tileSize, pixels);
+			}
+
+			@Override
+			public int getSize() {
+				return columns * rows;
+			}
+
+			@Override
+			public String getSliceLabel(final int n) {
+				return "x=" + ((n - 1) % columns) * tileSize + " y=" + ((n - 1) / columns) * tileSize;
+			}
+		};
+		stack.setBitDepth(24);
+		final ImagePlus imp = new ImagePlus(file.getName(), stack);
+		imp.setProperty("Info", "Image size: " + width + "x" + height + " pixels at scale " + scale + "\n");
+		return imp;
+	}
+
+	/**
+	 * Renders the SVG at each of the given sizes, in tiles of at most
+	 * {@link SVGRasterizer#TILE_SIZE} pixels. The tiles are shared out to
+	 * several threads, each with its own copy of the SVG since the tree can
+	 * not be rendered from several threads at once.
+	 */
+	static ColorProcessor[] render(final SVGRasterizer svg, final File file,
+			final int[] widths, final int[] heights) throws IOException {
+		final ColorProcessor[] processors = new ColorProcessor[widths.length];
+		final List<int[]> tiles = new ArrayList<int[]>();
+		final int size = SVGRasterizer.TILE_SIZE;
+		for (int level = 0; level < widths.length; level++) {
+			processors[level] = new ColorProcessor(widths[level], heights[level]);
+			for (int y = 0; y < heights[level]; y += size)
+				for (int x = 0; x < widths[level]; x += size)
+					tiles.add(new int[] { level, x, y });
+		}
+
+		final int threads = Math.max(1, Math.min(Prefs.getThreads(), tiles.size()));
+		final AtomicInteger next = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for (int i = 0; i < threads; i++) {
+				final boolean first = i == 0;
+				workers.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						final SVGRasterizer rasterizer = first ? svg : new SVGRasterizer(file);
+						for (int i = next.getAndIncrement(); i < tiles.size(); i = next.getAndIncrement()) {
+							final int[] tile = tiles.get(i);
+							final int level = tile[0], x = tile[1], y = tile[2];
+							final int width = widths[level], height = heights[level];
+							rasterizer.render(width / (double)svg.width, height / (double)svg.height,
+								x, y, Math.min(size, width - x), Math.min(size, height - y),
+								(int[])processors[level].getPixels(), y * width + x, width);
+						}
+						return null;
+					}
+				}));
+			}
+			for (final Future<Void> worker : workers)
+				worker.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while rendering " + file);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return processors;
+	}
 }
@@ -50,20 +50,41 @@ package sc.fiji.io;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
 
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Save_DF3 implements PlugIn 
 {
 	private String[] types = null;
 
+	static final String[] RANGES = {
+		"Full (reads every slice twice)",
+		"Sampled slices",
+		"Fixed" };
+
+	/** Number of evenly spaced slices the sampled range is estimated from. */
+	static final int RANGE_SAMPLES = 16;
+
 	public void run( String args )
 	{
 		double max;
@@ -109,6 +130,10 @@ public class Save_DF3 implements PlugIn
 		gd.addChoice( "Choose_data_output_format :", types, types[ types.length - 1 ] );
 		gd.addCheckbox( "Create_POV-Ray_scene :", false );
 		if ( stretchContrastIsNegotiable ) gd.addCheckbox( "Stretch_contrast :", true );
+		ImageStack stack = imp.getStack();
+		gd.addChoice( "Contrast_range :", RANGES, RANGES[ stack.isVirtual() ? 1 : 0 ] );
+		gd.addNumericField( "Fixed_minimum :", imp.getDisplayRangeMin(), 2 );
+		gd.addNumericField( "Fixed_maximum :", imp.getDisplayRangeMax(), 2 );
 		gd.showDialog();
 		if ( gd.wasCanceled() ) return;
 
@@ -144,90 +169,41 @@ public class Save_DF3 implements PlugIn
 		String fileName = directory + name;
 		boolean createPov = gd.getNextBoolean();
 		boolean stretchContrast = stretchContrastIsNegotiable ? gd.getNextBoolean() : true;
+		int rangeMode = gd.getNextChoiceIndex();
+		double fixedMin = gd.getNextNumber();
+		double fixedMax = gd.getNextNumber();
 		
-		ImageStack stack = imp.getStack();
-		
+
 		int width = stack.getWidth();
 		int height = stack.getHeight();
-		int length = width * height;
-		
 		int depth = stack.getSize();
 		
 		double min = 0.0;
+		ImageProcessor[] decoded = null;
 		
 		if ( stretchContrast )
 		{
-			min = Double.MAX_VALUE;
-			max = Double.MIN_VALUE;
-			
-			for ( int z = 1; z <= depth; ++z )
+			double[] range;
+			if ( rangeMode == 2 )
+				range = new double[]{ fixedMin, fixedMax };
+			else
 			{
-				IJ.showProgress( z, depth );
-				IJ.showStatus( "Identifying contrast range: " + z + "/" + depth );
-				
-				ImageProcessor ips = stack.getProcessor( z );
-				for ( int i = 0; i < length; ++i )
+				IJ.showStatus( "Identifying contrast range..." );
+				if ( rangeMode == 1 )
 				{
-					double v = ips.getf( i );
-					if ( v < min ) min = v;
-					if ( v > max ) max = v;
+					decoded = new ImageProcessor[ depth + 1 ];
+					range = estimateRange( stack, RANGE_SAMPLES, decoded );
 				}
+				else
+					range = getRange( stack );
 			}
+			min = range[ 0 ];
+			max = range[ 1 ];
 		}
 		
 		try
 		{
-			java.io.FileOutputStream file = new FileOutputStream( fileName, false );
-		
-			byte[] header = new byte[ 6 ];
-			header[ 0 ] = ( byte )( width >> 8 );
-			header[ 1 ] = ( byte )width;
-			
-			header[ 2 ] = ( byte )( height >> 8 );
-			header[ 3 ] = ( byte )height;
-			
-			header[ 4 ] = ( byte )( depth >> 8 );
-			header[ 5 ] = ( byte )depth;
-			
-			file.write( header );
-			double d =  typeScale / ( max - min );
-						
-			
-			for ( int z = 1; z <= depth; ++z )
-			{
-				IJ.showProgress( z, depth );
-				IJ.showStatus( "Writing: " + z + "/" + depth );
-				
-				ImageProcessor ips = stack.getProcessor( z );
-				
-				byte[] bytes = new byte[ typeLength * length ];
-				
-				for ( int i = 0; i < length; ++i )
-				{
-					int j = typeLength * i;
-					long pixel = Math.min( typeScale, Math.max( 0l, ( long )( ( ips.getf( i ) - min ) * d ) ) );
-
-					switch ( type )
-					{
-					case 0:
-						bytes[ j ] = ( byte )pixel;
-						break;
-					case 1:
-						bytes[ j ] = ( byte )( pixel >> 8 );
-						bytes[ j + 1 ] = ( byte )pixel;
-						break;
-					case 2:
-						bytes[ j ] = ( byte )( pixel >> 24 );
-						bytes[ j + 1 ] = ( byte )( pixel >> 16 );
-						bytes[ j + 2 ] = ( byte )( pixel >> 8 );
-						bytes[ j + 3 ] = ( byte )pixel;
-					}
-				}
-				
-				file.write( bytes );
-			}
-		
-			file.close();
+			save( stack, fileName, typeLength, min, max, decoded );
 			IJ.showStatus( "Saved " + fileName + "." );
 		
 			if ( createPov )
@@ -261,4 +237,267 @@ public class Save_DF3 implements PlugIn
 			return;
 		}	
 	}
+
+	/**
+	 * Finds the min and max of all slices.  The slices of a regular stack
+	 * are distributed over threads, each reducing its own range; virtual
+	 * stacks are read sequentially.
+	 */
+	static double[] getRange( final ImageStack stack )
+	{
+		final int depth = stack.getSize();
+		final int nThreads = stack.isVirtual() ? 1 : Math.min( depth, Prefs.getThreads() );
+		final Thread[] threads = ThreadUtil.createThreadArray( nThreads );
+		final double[][] ranges = new double[ nThreads ][];
+		final AtomicInteger ai = new AtomicInteger( 1 );
+		final AtomicInteger done = new AtomicInteger( 0 );
+		for ( int t = 0; t < nThreads; ++t )
+		{
+			final double[] range = ranges[ t ] = new double[]{ Double.MAX_VALUE, -Double.MAX_VALUE };
+			threads[ t ] = new Thread()
+			{
+				public void run()
+				{
+					for ( int z = ai.getAndIncrement(); z <= depth; z = ai.getAndIncrement() )
+					{
+						updateRange( stack.getProcessor( z ), range );
+						IJ.showProgress( done.incrementAndGet(), depth );
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin( threads );
+		final double[] range = ranges[ 0 ];
+		for ( int t = 1; t < nThreads; ++t )
+		{
+			range[ 0 ] = Math.min( range[ 0 ], ranges[ t ][ 0 ] );
+			range[ 1 ] = Math.max( range[ 1 ], ranges[ t ][ 1 ] );
+		}
+		return range;
+	}
+
+	/**
+	 * Estimates the range from evenly spaced slices, for stacks that are too
+	 * expensive to read twice.  The sampled processors are kept in
+	 * {@code decoded}, indexed by slice number, so that
+	 * {@link #save(ImageStack, String, int, double, double, ImageProcessor[])}
+	 * does not decode them again.  Pixels of other slices outside the
+	 * estimated range are clamped when writing.
+	 */
+	static double[] estimateRange( final ImageStack stack, final int samples, final ImageProcessor[] decoded )
+	{
+		final int depth = stack.getSize();
+		final int n = Math.max( 1, Math.min( samples, depth ) );
+		final double[] range = { Double.MAX_VALUE, -Double.MAX_VALUE };
+		for ( int i = 0; i < n; ++i )
+		{
+			final int z = n == 1 ? 1 : 1 + ( int )( ( long )i * ( depth - 1 ) / ( n - 1 ) );
+			if ( decoded[ z ] == null )
+			{
+				decoded[ z ] = stack.getProcessor( z );
+				updateRange( decoded[ z ], range );
+			}
+			IJ.showProgress( i + 1, n );
+		}
+		return range;
+	}
+
+	/** Widens {min, max} to include all pixels of the processor. */
+	static void updateRange( final ImageProcessor ip, final double[] range )
+	{
+		double min = range[ 0 ], max = range[ 1 ];
+		final Object pixels = ip.getPixels();
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] p = ( byte[] )pixels;
+			for ( int i = 0; i < p.length; ++i )
+			{
+				final int v = p[ i ] & 0xff;
+				if ( v < min ) min = v;
+				if ( v > max ) max = v;
+			}
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] p = ( short[] )pixels;
+			for ( int i = 0; i < p.length; ++i )
+			{
+				final int v = p[ i ] & 0xffff;
+				if ( v < min ) min = v;
+				if ( v > max ) max = v;
+			}
+		}
+		else if ( pixels instanceof float[] )
+		{
+			final float[] p = ( float[] )pixels;
+			for ( int i = 0; i < p.length; ++i )
+			{
+				final float v = p[ i ];
+				if ( v < min ) min = v;
+				if ( v > max ) max = v;
+			}
+		}
+		else
+		{
+			final int length = ip.getPixelCount();
+			for ( int i = 0; i < length; ++i )
+			{
+				final double v = ip.getf( i );
+				if ( v < min ) min = v;
+				if ( v > max ) max = v;
+			}
+		}
+		range[ 0 ] = min;
+		range[ 1 ] = max;
+	}
+
+	static long getTypeScale( final int typeLength )
+	{
+		return typeLength == 1 ? 255l : typeLength == 2 ? 65535l : 4294967295l;
+	}
+
+	/**
+	 * Writes a df3 file, mapping [min, max] to the full range of the 1, 2 or
+	 * 4 byte unsigned voxels.  The slices are fetched in order, scaled and
+	 * packed big endian on a thread pool, and the packed buffers are written
+	 * in order through a single channel.  At most two buffers per thread are
+	 * pending at any time.
+	 */
+	static public void save( final ImageStack stack, final String fileName, final int typeLength, final double min, final double max ) throws IOException
+	{
+		save( stack, fileName, typeLength, min, max, null );
+	}
+
+	/**
+	 * Like {@link #save(ImageStack, String, int, double, double)}, but takes
+	 * the processors of slices that were decoded already from
+	 * {@code decoded} (indexed by slice number, may be null), so that every
+	 * slice of a virtual stack is read exactly once.
+	 */
+	static public void save( final ImageStack stack, final String fileName, final int typeLength, final double min, final double max, final ImageProcessor[] decoded ) throws IOException
+	{
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+		final long typeScale = getTypeScale( typeLength );
+		final double d = typeScale / ( max - min );
+
+		final FileOutputStream file = new FileOutputStream( fileName, false );
+		final FileChannel channel = file.getChannel();
+		final int nThreads = Math.max( 1, Math.min( depth, Prefs.getThreads() ) );
+		final ExecutorService exec = Executors.newFixedThreadPool( nThreads );
+		try
+		{
+			final ByteBuffer header = ByteBuffer.allocate( 6 );
+			header.putShort( ( short )width ).putShort( ( short )height ).putShort( ( short )depth );
+			header.flip();
+			write( channel, header );
+
+			final LinkedList< Future< ByteBuffer > > pending = new LinkedList< Future< ByteBuffer > >();
+			int next = 1;
+			for ( int z = 1; z <= depth; ++z )
+			{
+				while ( next <= depth && pending.size() < 2 * nThreads )
+				{
+					final ImageProcessor ip;
+					if ( decoded != null && decoded[ next ] != null )
+					{
+						ip = decoded[ next ];
+						decoded[ next ] = null;
+					}
+					else
+						ip = stack.getProcessor( next );
+					++next;
+					pending.add( exec.submit( new Callable< ByteBuffer >()
+					{
+						public ByteBuffer call()
+						{
+							return pack( ip, typeLength, typeScale, min, d );
+						}
+					} ) );
+				}
+				write( channel, pending.removeFirst().get() );
+				IJ.showProgress( z, depth );
+				IJ.showStatus( "Writing: " + z + "/" + depth );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			throw new IOException( "Interrupted while writing " + fileName );
+		}
+		catch ( ExecutionException e )
+		{
+			throw new IOException( e.getCause() );
+		}
+		finally
+		{
+			exec.shutdownNow();
+			file.close();
+		}
+	}
+
+	private static void write( final FileChannel channel, final ByteBuffer buffer ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+			channel.write( buffer );
+	}
+
+	/**
+	 * Scales the pixels by (v - min) * d, clamps them to [0, typeScale] and
+	 * packs them big endian.  The pixel type and the output width are each
+	 * dispatched once per slice, not per pixel.
+	 */
+	static ByteBuffer pack( final ImageProcessor ip, final int typeLength, final long typeScale, final double min, final double d )
+	{
+		final int length = ip.getPixelCount();
+		final int[] scaled = new int[ length ];
+		final Object pixels = ip.getPixels();
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] p = ( byte[] )pixels;
+			for ( int i = 0; i < length; ++i )
+				scaled[ i ] = scale( p[ i ] & 0xff, typeScale, min, d );
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] p = ( short[] )pixels;
+			for ( int i = 0; i < length; ++i )
+				scaled[ i ] = scale( p[ i ] & 0xffff, typeScale, min, d );
+		}
+		else if ( pixels instanceof float[] )
+		{
+			final float[] p = ( float[] )pixels;
+			for ( int i = 0; i < length; ++i )
+				scaled[ i ] = scale( p[ i ], typeScale, min, d );
+		}
+		else
+		{
+			for ( int i = 0; i < length; ++i )
+				scaled[ i ] = scale( ip.getf( i ), typeScale, min, d );
+		}
+
+		final ByteBuffer bytes = ByteBuffer.allocate( typeLength * length );
+		switch ( typeLength )
+		{
+		case 1:
+			final byte[] b = bytes.array();
+			for ( int i = 0; i < length; ++i )
+				b[ i ] = ( byte )scaled[ i ];
+			break;
+		case 2:
+			final ShortBuffer s = bytes.asShortBuffer();
+			for ( int i = 0; i < length; ++i )
+				s.put( i, ( short )scaled[ i ] );
+			break;
+		default:
+			bytes.asIntBuffer().put( scaled );
+		}
+		return bytes;
+	}
+
+	/** Scales one value by (v - min) * d and clamps it to [0, typeScale]. */
+	private static int scale( final float v, final long typeScale, final double min, final double d )
+	{
+		return ( int )Math.min( typeScale, Math.max( 0l, ( long )( ( v - min ) * d ) ) );
+	}
 }
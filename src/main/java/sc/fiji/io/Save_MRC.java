@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.io.SaveDialog;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Save an image or stack as an MRC2014 file, the counterpart of
+ * {@link Open_MRC_Leginon}.
+ *
+ * Slices are streamed to the file one at a time with their rows written
+ * bottom-up, so virtual stacks larger than the available memory can be saved.
+ * The amin/amax/amean/rms statistics are accumulated while writing and
+ * patched into the header at the end rather than computed in a separate pass.
+ *
+ * 8-bit images are written as mode 0, signed 16-bit images as mode 1,
+ * unsigned 16-bit images as mode 6 and 32-bit images as mode 2.
+ */
+public class Save_MRC implements PlugIn {
+
+	/** Expects path as argument, or will ask for it and then save the current image. */
+	public void run(final String arg) {
+		final ImagePlus imp = WindowManager.getCurrentImage();
+		if (null == imp) {
+			IJ.noImage();
+			return;
+		}
+		String path = arg;
+		if (null == path || 0 == path.length()) {
+			SaveDialog sd = new SaveDialog("Save as MRC", imp.getTitle(), ".mrc");
+			if (null == sd.getFileName()) return;
+			path = sd.getDirectory() + sd.getFileName();
+		}
+		try {
+			save(imp, path);
+			IJ.showStatus("Saved " + path);
+		} catch (IOException e) {
+			IJ.error("MRC Writer", "Could not save " + path + ":\n" + e.getMessage());
+		}
+	}
+
+	/** Writes all slices of the image's stack as the sections of an MRC file. */
+	static public void save(final ImagePlus imp, final String path) throws IOException {
+		final int mode = getMode(imp);
+		if (-1 == mode) throw new IOException("RGB and indexed color images are not supported.");
+		final ImageStack stack = imp.getStack();
+		final int w = stack.getWidth(), h = stack.getHeight(), n = stack.getSize();
+		final int bytesPerPixel = 0 == mode ? 1 : 2 == mode ? 4 : 2;
+		final ByteBuffer section = ByteBuffer.allocateDirect(w * h * bytesPerPixel).order(ByteOrder.LITTLE_ENDIAN);
+
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0, sumSquares = 0;
+		final RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(0);
+			final FileChannel channel = file.getChannel();
+			// statistics are patched in once all sections are written
+			final ByteBuffer header = createHeader(imp, mode, w, h, n);
+			channel.write(header, 0);
+			long position = header.capacity();
+
+			for (int z = 1; z <= n; ++z) {
+				IJ.showStatus("Writing section " + z + "/" + n);
+				final Object pixels = stack.getPixels(z);
+				section.clear();
+				// the MRC origin is the lower left corner
+				for (int y = h - 1; y >= 0; --y) {
+					final int offset = y * w;
+					switch (mode) {
+						case 0: {
+							final byte[] p = (byte[])pixels;
+							for (int i = offset; i < offset + w; ++i) {
+								final int v = p[i] & 0xff;
+								section.put(p[i]);
+								if (v < min) min = v;
+								if (v > max) max = v;
+								sum += v;
+								sumSquares += v * v;
+							}
+							break;
+						}
+						case 1:
+						case 6: {
+							final short[] p = (short[])pixels;
+							final int shift = 1 == mode ? 32768 : 0;
+							for (int i = offset; i < offset + w; ++i) {
+								final int v = (p[i] & 0xffff) - shift;
+								section.putShort((short)v);
+								if (v < min) min = v;
+								if (v > max) max = v;
+								sum += v;
+								sumSquares += (double)v * v;
+							}
+							break;
+						}
+						default: {
+							final float[] p = (float[])pixels;
+							for (int i = offset; i < offset + w; ++i) {
+								final float v = p[i];
+								section.putFloat(v);
+								if (v < min) min = v;
+								if (v > max) max = v;
+								sum += v;
+								sumSquares += (double)v * v;
+							}
+							break;
+						}
+					}
+				}
+				section.flip();
+				while (section.hasRemaining())
+					position += channel.write(section, position);
+				IJ.showProgress(z, n);
+			}
+
+			final double count = (double)w * h * n;
+			final double mean = sum / count;
+			header.putFloat(76, (float)min);
+			header.putFloat(80, (float)max);
+			header.putFloat(84, (float)mean);
+			header.putFloat(216, (float)Math.sqrt(Math.max(0, sumSquares / count - mean * mean)));
+			header.clear();
+			channel.write(header, 0);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @return the MRC mode matching the image type, or -1 if there is none.
+	 *   Indexed color images have none: their palette cannot be stored.
+	 */
+	static int getMode(final ImagePlus imp) {
+		switch (imp.getType()) {
+			case ImagePlus.GRAY8: return 0;
+			case ImagePlus.GRAY16: return imp.getCalibration().isSigned16Bit() ? 1 : 6;
+			case ImagePlus.GRAY32: return 2;
+		}
+		return -1;
+	}
+
+	private static ByteBuffer createHeader(final ImagePlus imp, final int mode, final int w, final int h, final int n) {
+		final ByteBuffer header = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0, w);
+		header.putInt(4, h);
+		header.putInt(8, n);
+		header.putInt(12, mode);
+		// nxstart, nystart, nzstart stay 0; the grid is the image itself
+		header.putInt(28, w);
+		header.putInt(32, h);
+		header.putInt(36, n);
+		// cell dimensions in Angstrom
+		final double scale = toAngstrom(imp.getCalibration());
+		final Calibration cal = imp.getCalibration();
+		header.putFloat(40, (float)(w * cal.pixelWidth * scale));
+		header.putFloat(44, (float)(h * cal.pixelHeight * scale));
+		header.putFloat(48, (float)(n * cal.pixelDepth * scale));
+		header.putFloat(52, 90);
+		header.putFloat(56, 90);
+		header.putFloat(60, 90);
+		header.putInt(64, 1);
+		header.putInt(68, 2);
+		header.putInt(72, 3);
+		// space group 0 marks a stack of images, 1 a volume
+		header.putInt(88, imp.getNFrames() > 1 ? 0 : 1);
+		header.put(104, (byte)'M').put(105, (byte)'R').put(106, (byte)'C').put(107, (byte)'O');
+		header.putInt(108, 20140);
+		header.put(208, (byte)'M').put(209, (byte)'A').put(210, (byte)'P').put(211, (byte)' ');
+		// machine stamp for little-endian data
+		header.put(212, (byte)0x44).put(213, (byte)0x44);
+		header.putInt(220, 1);
+		final byte[] label = ("Fiji IO: " + imp.getTitle()).getBytes();
+		for (int i = 0; i < label.length && i < 80; ++i)
+			header.put(224 + i, label[i]);
+		return header;
+	}
+
+	private static double toAngstrom(final Calibration cal) {
+		if (!cal.scaled()) return 1;
+		final String unit = cal.getUnit();
+		if (unit.equals("nm")) return 10;
+		if (unit.equals("um") || unit.equals("micron") || unit.equals("\u00B5m")) return 1e4;
+		if (unit.equals("mm")) return 1e7;
+		return 1;
+	}
+}
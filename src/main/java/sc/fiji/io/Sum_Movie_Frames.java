@@ -0,0 +1,72 @@
+/*-
+ * #%L
+ * IO plugin for Fiji.
+ * %%
+ * Copyright (C) 2008 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.io;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+import java.io.IOException;
+
+/**
+ * Import an MRC or DM3/DM4 movie as the sum or the average of its frames.
+ * The frames are accumulated while they are read, optionally shifted by the
+ * whole-pixel offsets listed in a shift file (see
+ * {@link FrameAccumulator#readShifts(String)}), so memory use is one
+ * accumulator plus one frame regardless of the length of the movie.
+ */
+public class Sum_Movie_Frames implements PlugIn {
+
+	public void run(final String arg) {
+		OpenDialog od = new OpenDialog("Choose movie (.mrc, .dm3)", arg);
+		String directory = od.getDirectory();
+		String fileName = od.getFileName();
+		if (null == fileName) return;
+
+		GenericDialog gd = new GenericDialog("Sum Movie Frames");
+		gd.addChoice("Accumulate:", new String[] { "Sum", "Average" }, "Sum");
+		gd.addFileField("Shift file (optional):", "");
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		boolean average = 1 == gd.getNextChoiceIndex();
+		String shiftPath = gd.getNextString().trim();
+
+		try {
+			int[][] shifts = 0 == shiftPath.length() ? null : FrameAccumulator.readShifts(shiftPath);
+			ImagePlus imp = open(directory, fileName, shifts, average);
+			if (null != imp) imp.show();
+		} catch (IOException e) {
+			IJ.error("Sum Movie Frames", "Could not read " + fileName + ":\n" + e.getMessage());
+		}
+	}
+
+	/** Dispatches on the file extension to the DM3 or the MRC reader. */
+	static public ImagePlus open(String directory, final String fileName, final int[][] shifts, final boolean average) throws IOException {
+		if (!directory.endsWith("/") && !directory.endsWith(java.io.File.separator)) directory += "/";
+		final String name = fileName.toLowerCase();
+		if (name.endsWith(".dm3") || name.endsWith(".dm4"))
+			return new DM3_Reader().sumFrames(directory, fileName, shifts, average);
+		return Open_MRC_Leginon.sumFrames(directory + fileName, shifts, average);
+	}
+}
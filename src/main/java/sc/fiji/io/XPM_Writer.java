@@ -147,7 +147,7 @@ public class XPM_Writer implements PlugIn {
 		for (int j = 0; j < h; j++) {
 			String line = "\"";
 			for (int i = 0; i < w; i++)
-				line += letters[pixels[i + j * w]];
+				line += letters[pixels[i + j * w] & 0xff];
 			line += "\"" + (j < h - 1 ? "," : "};");
 			out.println(line);
 		}
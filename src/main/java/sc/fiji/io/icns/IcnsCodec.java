@@ -56,11 +56,25 @@ package sc.fiji.io.icns;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
 
 public class IcnsCodec {
     private static final String ICNS = "icns";
@@ -87,15 +101,64 @@ public class IcnsCodec {
     private static final String THUMBNAIL_8_BIT_MASK = "t8mk";
     static final int THUMBNAIL_SIZE = 128;
 
+    // PNG (or JPEG 2000) encoded icons, ordered as PNG_SIZES; used when writing
+    private static final String[] PNG_TYPES = { "ic11", "ic12", "ic07", "ic08", "ic09", "ic10" };
+    static final int[] PNG_SIZES = { 32, 64, 128, 256, 512, 1024 };
+    // Retina variants which duplicate the sizes of ic08 and ic09; only read
+    private static final String PNG_256_RETINA = "ic13";
+    private static final String PNG_512_RETINA = "ic14";
+
+    static int getPNGIndex(int size) {
+        for (int i = 0; i < PNG_SIZES.length; i++) {
+            if (PNG_SIZES[i] == size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     public void encode(IconSuite suite, OutputStream outputStream) throws IOException {
-        byte[] small = encode32bitIcon(suite.getSmallIcon(), SMALL_32_BIT_RGB, SMALL_8_BIT_MASK);
-        byte[] large = encode32bitIcon(suite.getLargeIcon(), LARGE_32_BIT_RGB, LARGE_8_BIT_MASK);
-        byte[] huge = encode32bitIcon(suite.getHugeIcon(), HUGE_32_BIT_RGB, HUGE_8_BIT_MASK);
-        byte[] thumbnail = encode32bitIcon(suite.getThumbnailIcon(), THUMBNAIL_32_BIT_RGB, IOSupport.LONG_INT_SIZE, THUMBNAIL_8_BIT_MASK);
+        int nbThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            encode(suite, outputStream, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void encode(IconSuite suite, OutputStream outputStream, ExecutorService executor) throws IOException {
+        // The PNG icons are the most expensive ones, so start them first;
+        // the 32-bit icons pack their channels on the same executor meanwhile.
+        List<Future<byte[]>> pngs = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < PNG_SIZES.length; i++) {
+            final BufferedImage icon = suite.getPNGIcon(PNG_SIZES[i]);
+            if (icon != null) {
+                final String type = PNG_TYPES[i];
+                pngs.add(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return encodePNGIcon(icon, type);
+                    }
+                }));
+            }
+        }
+
+        byte[] small = encode32bitIcon(suite.getSmallIcon(), SMALL_32_BIT_RGB, SMALL_8_BIT_MASK, executor);
+        byte[] large = encode32bitIcon(suite.getLargeIcon(), LARGE_32_BIT_RGB, LARGE_8_BIT_MASK, executor);
+        byte[] huge = encode32bitIcon(suite.getHugeIcon(), HUGE_32_BIT_RGB, HUGE_8_BIT_MASK, executor);
+        byte[] thumbnail = encode32bitIcon(suite.getThumbnailIcon(), THUMBNAIL_32_BIT_RGB, IOSupport.LONG_INT_SIZE, THUMBNAIL_8_BIT_MASK, executor);
         byte[] icsBW = encodeIcsBW(suite);
         byte[] icnBW = encodeIcnBW(suite);
 
-        int totalSize = icsBW.length + icnBW.length + small.length + huge.length + large.length + thumbnail.length;
+        List<byte[]> png = new ArrayList<byte[]>();
+        int pngSize = 0;
+        for (Future<byte[]> future : pngs) {
+            byte[] data = get(future);
+            png.add(data);
+            pngSize += data.length;
+        }
+
+        int totalSize = icsBW.length + icnBW.length + small.length + huge.length + large.length + thumbnail.length + pngSize;
 
         DataOutputStream stream = new DataOutputStream(outputStream);
 
@@ -108,6 +171,39 @@ public class IcnsCodec {
         stream.write(large);
         stream.write(huge);
         stream.write(thumbnail);
+        for (byte[] data : png) {
+            stream.write(data);
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while encoding icons");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private byte[] encodePNGIcon(BufferedImage image, String header) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOSupport.writeLiteralLongInt(out, header);
+        IOSupport.writeLongInt(out, 0);
+        if (!ImageIO.write(image, "png", out)) {
+            throw new IOException("No PNG writer available for " + header);
+        }
+
+        // Fill in the resource size now that the data size is known
+        byte[] data = out.toByteArray();
+        int size = data.length;
+        data[4] = (byte) (size >>> 24);
+        data[5] = (byte) (size >>> 16);
+        data[6] = (byte) (size >>> 8);
+        data[7] = (byte) size;
+        return data;
     }
 
     private byte[] encodeIcsBW(IconSuite suite) throws IOException {
@@ -153,54 +249,90 @@ public class IcnsCodec {
         return data;
     }
 
-    private byte[] encode32bitIcon(BufferedImage image, String rgbHeader, String maskHeader) throws IOException {
-        return encode32bitIcon(image, rgbHeader, 0, maskHeader);
+    private byte[] encode32bitIcon(BufferedImage image, String rgbHeader, String maskHeader, ExecutorService executor) throws IOException {
+        return encode32bitIcon(image, rgbHeader, 0, maskHeader, executor);
     }
 
-    private byte[] encode32bitIcon(BufferedImage image, String rgbHeader, int rgbPrefixSize, String maskHeader) throws IOException {
+    private byte[] encode32bitIcon(BufferedImage image, String rgbHeader, int rgbPrefixSize, String maskHeader, ExecutorService executor) throws IOException {
         if (image == null) {
             return new byte[0];
         }
 
         int width = image.getWidth();
         int height = image.getHeight();
-        byte[] bytesR = new byte[width * height];
-        byte[] bytesG = new byte[width * height];
-        byte[] bytesB = new byte[width * height];
+        final byte[][] channels = new byte[3][width * height];
         byte[] mask = new byte[width * height];
 
+        // Read the packed ARGB/RGB ints straight from the raster when possible,
+        // otherwise let getRGB convert the whole image in one call.
+        int[] pixels;
+        int offset = 0;
+        int stride = width;
+        int alpha = 0;
+        WritableRaster raster = image.getRaster();
+        int type = image.getType();
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+                && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            pixels = buffer.getData();
+            stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            offset = buffer.getOffset()
+                    - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX();
+            if (type == BufferedImage.TYPE_INT_RGB) {
+                alpha = 0xFF000000;
+            }
+        } else {
+            pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        }
+
+        byte[] r = channels[0];
+        byte[] g = channels[1];
+        byte[] b = channels[2];
         for (int y = 0; y < height; y++) {
+            int in = offset + y * stride;
+            int out = y * width;
             for (int x = 0; x < width; x++) {
-                int pixel = image.getRGB(x, y);
-                byte a = (byte) ((pixel & 0xFF000000) >> 24);
-                byte r = (byte) ((pixel & 0x00FF0000) >> 16);
-                byte g = (byte) ((pixel & 0x0000FF00) >> 8);
-                byte b = (byte) ((pixel & 0x000000FF));
-
-                int pixelOffset = (y * width) + x;
-                mask[pixelOffset] = a;
-                bytesR[pixelOffset] = r;
-                bytesG[pixelOffset] = g;
-                bytesB[pixelOffset] = b;
+                int pixel = pixels[in++] | alpha;
+                mask[out] = (byte) (pixel >> 24);
+                r[out] = (byte) (pixel >> 16);
+                g[out] = (byte) (pixel >> 8);
+                b[out] = (byte) pixel;
+                out++;
             }
         }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-        byte[] packedR = RunLengthEncoding.packIconData(bytesR);
-        byte[] packedG = RunLengthEncoding.packIconData(bytesG);
-        byte[] packedB = RunLengthEncoding.packIconData(bytesB);
-        int packedLength = packedR.length + packedG.length + packedB.length;
+        // Pack the channels concurrently, each into a buffer large enough
+        // for the worst case so that the packed data needs no trimming.
+        final byte[][] packed = new byte[3][RunLengthEncoding.getMaxPackedLength(width * height)];
+        List<Future<Integer>> packers = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < channels.length; i++) {
+            final int channel = i;
+            packers.add(executor.submit(new Callable<Integer>() {
+                public Integer call() {
+                    return RunLengthEncoding.packIconData(channels[channel], packed[channel]);
+                }
+            }));
+        }
+        int[] packedLengths = new int[channels.length];
+        int packedLength = 0;
+        for (int i = 0; i < channels.length; i++) {
+            packedLengths[i] = get(packers.get(i));
+            packedLength += packedLengths[i];
+        }
         int resourceSize = rgbPrefixSize + packedLength + 2 * IOSupport.LONG_INT_SIZE;
 
+        ByteArrayOutputStream out = new ByteArrayOutputStream(resourceSize + mask.length + 2 * IOSupport.LONG_INT_SIZE);
+
         IOSupport.writeLiteralLongInt(out, rgbHeader);
         IOSupport.writeLongInt(out, resourceSize);
         // The rgbPrefixSize allows the unknown value at the beginning of
         // the thumbnail icons to be added.
         out.write(new byte[rgbPrefixSize]);
-        out.write(packedR);
-        out.write(packedG);
-        out.write(packedB);
+        for (int i = 0; i < channels.length; i++) {
+            out.write(packed[i], 0, packedLengths[i]);
+        }
 
         IOSupport.writeLiteralLongInt(out, maskHeader);
         IOSupport.writeLongInt(out, mask.length + 2 * IOSupport.LONG_INT_SIZE);
@@ -276,6 +408,16 @@ public class IcnsCodec {
             128x128 mask
             16384 bytes
             Each byte is an alpha value for the alpha channel of the it32 icon resource
+
+          ic07, ic08, ic09, ic10:
+            128x128, 256x256, 512x512 and 1024x1024 icons
+            Variable size
+            Data is a complete PNG (or, in older files, JPEG 2000) stream, including alpha
+
+          ic11, ic12, ic13, ic14:
+            32x32, 64x64, 256x256 and 512x512 icons, the @2x variants of the 16, 32, 128 and
+            256 point sizes
+            see ic07
         */
 
         String header = IOSupport.readLiteralLongInt(inputStream);
@@ -287,6 +429,7 @@ public class IcnsCodec {
         int[] large = null;
         int[] huge = null;
         int[] thumb = null;
+        BufferedImage[] png = new BufferedImage[PNG_SIZES.length];
 
         int fileSize = IOSupport.readLongInt(inputStream);
         int bytesLeft = fileSize - (2 * IOSupport.LONG_INT_SIZE);
@@ -333,6 +476,17 @@ public class IcnsCodec {
                 byte[] elementData = new byte[elementDataSize];
                 IOSupport.readFully(inputStream, elementData);
                 thumb = decode8bitMask(elementData, thumb, THUMBNAIL_SIZE);
+            } else if (isPNGType(elementType)) {
+                byte[] elementData = new byte[elementDataSize];
+                IOSupport.readFully(inputStream, elementData);
+                // ImageIO returns null for JPEG 2000 data unless a plugin is installed
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(elementData));
+                if (image != null && image.getWidth() == image.getHeight()) {
+                    int index = getPNGIndex(image.getWidth());
+                    if (index >= 0 && png[index] == null) {
+                        png[index] = image;
+                    }
+                }
             } else {
                 IOSupport.skip(inputStream, elementDataSize);
             }
@@ -353,10 +507,27 @@ public class IcnsCodec {
         if (thumb != null) {
             suite.setThumbnailIcon(createImage(THUMBNAIL_SIZE, thumb));
         }
+        for (int i = 0; i < png.length; i++) {
+            if (png[i] != null) {
+                suite.setPNGIcon(PNG_SIZES[i], png[i]);
+            }
+        }
 
         return suite;
     }
 
+    private boolean isPNGType(String elementType) {
+        if (elementType.equals(PNG_256_RETINA) || elementType.equals(PNG_512_RETINA)) {
+            return true;
+        }
+        for (String type : PNG_TYPES) {
+            if (type.equals(elementType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private BufferedImage createImage(int size, int[] pixels) {
         BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
         image.setRGB(0, 0, size, size, pixels, 0, size);
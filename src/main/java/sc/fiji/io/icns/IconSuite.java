@@ -62,26 +62,27 @@ public class IconSuite {
     private static final int THUMBNAIL_INDEX = 3;
 
     private BufferedImage[] icons = new BufferedImage[4];
+    private BufferedImage[] pngIcons = new BufferedImage[IcnsCodec.PNG_SIZES.length];
 
     /**
      * Returns the icon that mathces the given dimensions the closest.
      */
     public BufferedImage getBestMatchingIcon(int width, int height) {
-        int bestMatch = -1;
+        BufferedImage bestMatch = null;
         int bestWidth = -1;
         int bestHeight = -1;
 
-        for (int i = 0; i < icons.length; i++) {
-            BufferedImage icon = icons[i];
+        for (int i = 0; i < icons.length + pngIcons.length; i++) {
+            BufferedImage icon = i < icons.length ? icons[i] : pngIcons[i - icons.length];
             if (icon != null) {
                 int iconWidth = icon.getWidth();
                 int iconHeight = icon.getHeight();
                 if (iconWidth == width && iconHeight == height) {
-                    bestMatch = i;
+                    bestMatch = icon;
                     break;
                 } else {
-                    if (bestMatch == -1 || (iconWidth >= width && iconHeight >= height && bestWidth < width && bestHeight < height)) {
-                        bestMatch = i;
+                    if (bestMatch == null || (iconWidth >= width && iconHeight >= height && bestWidth < width && bestHeight < height)) {
+                        bestMatch = icon;
                         bestWidth = iconWidth;
                         bestHeight = iconHeight;
                     }
@@ -89,11 +90,29 @@ public class IconSuite {
             }
         }
 
-        if (bestMatch != -1) {
-            return icons[bestMatch];
-        } else {
-            return null;
+        return bestMatch;
+    }
+
+    /**
+     * Returns the PNG encoded icon of the given size or null if such an icon has not been set.
+     */
+    public BufferedImage getPNGIcon(int size) {
+        int index = IcnsCodec.getPNGIndex(size);
+        return index < 0 ? null : pngIcons[index];
+    }
+
+    /**
+     * Sets a PNG encoded icon. PNG icons must have a dimension of 32x32, 64x64, 128x128,
+     * 256x256, 512x512 or 1024x1024, and are stored in the ic11, ic12, ic07, ic08, ic09
+     * and ic10 resources, respectively.
+     */
+    public void setPNGIcon(int size, BufferedImage pngIcon) {
+        int index = IcnsCodec.getPNGIndex(size);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unsupported PNG icon size: " + size + "x" + size);
         }
+        verifyIcon(pngIcon, size);
+        pngIcons[index] = pngIcon;
     }
 
     /**
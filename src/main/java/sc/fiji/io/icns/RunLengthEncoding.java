@@ -97,12 +97,18 @@ class RunLengthEncoding {
      * it should be repeated (header value - 125) times.
      */
     public static byte[] packIconData(byte[] unpackedData) {
-        byte[] resultBuffer = new byte[unpackedData.length + (unpackedData.length + 128) / 128];
+        byte[] resultBuffer = new byte[getMaxPackedLength(unpackedData.length)];
         int resultSize = RunLengthEncoding.packIconData(unpackedData, resultBuffer);
+        return Arrays.copyOf(resultBuffer, resultSize);
+    }
 
-        byte[] packedData = new byte[resultSize];
-        System.arraycopy(resultBuffer, 0, packedData, 0, resultSize);
-        return packedData;
+    /**
+     * Returns the size of a buffer that can hold the packed form of any data of the given length.
+     * Use it with {@link #packIconData(byte[], byte[])} to pack into a reusable buffer without
+     * trimming the result.
+     */
+    public static int getMaxPackedLength(int unpackedLength) {
+        return unpackedLength + (unpackedLength + 127) / 128;
     }
 
     /**